@@ -0,0 +1,359 @@
+package org.lance.lib.bitmap.cache;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Binary journal format used by {@link DiskLruCache}.
+ *
+ * <p>The header is the 4 byte magic {@code "DLRC"}, followed by the format
+ * version, the application version and the value count, each written as an
+ * unsigned varint. Every record after the header is:
+ * <pre>
+ *     op (1 byte) | key header (varint) | key bytes | lengths (CLEAN only)
+ * </pre>
+ * The low bit of the key header tells whether the key is a lower-case hex
+ * string stored as raw bytes (the MD5 keys produced by
+ * {@code CacheUtils.hashKeyForDisk} take 16 bytes instead of 32), or a UTF-8
+ * string; the remaining bits are the byte count. A CLEAN record carries one
+ * varint length per value. A CLEAN_PACKED record is written for entries with
+ * values in pack files (see {@link PackFileStore}); for each value it carries
+ * the length, the pack id plus one (0 for a value in its own file) and, for
+ * packed values, the offset. A CLEAN_BLOB record is written for entries with
+ * values in shared content-addressed blobs (see {@link BlobStore}); for each
+ * value it carries the length and a location byte: 0 for a value in its own
+ * file, 1 followed by the pack id and offset for a packed value, or 2
+ * followed by the 16 byte blob id.
+ *
+ * <p>Records are variable-width rather than fixed-width. Keys are arbitrary
+ * strings up to 1024 characters, not only 16 byte hashes, and varint lengths
+ * already make CLEAN records vary in size, so a fixed slot would have to
+ * fit the largest key and most of every record would be padding. The journal
+ * is only ever replayed from the start or from a checkpoint offset, never
+ * indexed by record number, so fixed-width records wouldn't make opening
+ * faster; reading without a per-record String.split is what does.
+ *
+ * <p>A record that is cut short by the end of the file is the tail of a write
+ * that never completed and is ignored; anything else that can't be parsed is
+ * reported as an {@code IOException}.
+ *
+ * <p>The index checkpoint ("journal.idx") reuses the record encoding. Its
+ * header is the magic {@code "DLRI"}, the format version, the application
+ * version, the value count, the journal offset the checkpoint is valid up
+ * to, the total size and the record count, all varints. The CLEAN and DIRTY
+ * records follow in LRU order, eldest first, and a big-endian CRC32 of all
+ * preceding bytes ends the file.
+ *
+ * @author lance
+ */
+final class BinaryJournal {
+    static final int MAGIC = 0x444c5243; // "DLRC"
+    static final int CHECKPOINT_MAGIC = 0x444c5249; // "DLRI"
+    static final int VERSION_2 = 2;
+
+    static final int OP_CLEAN = 1;
+    static final int OP_DIRTY = 2;
+    static final int OP_REMOVE = 3;
+    static final int OP_READ = 4;
+    static final int OP_CLEAN_PACKED = 5;
+    static final int OP_CLEAN_BLOB = 6;
+
+    private static final int LOCATION_FILE = 0;
+    private static final int LOCATION_PACK = 1;
+    private static final int LOCATION_BLOB = 2;
+
+    /** Pack id of a value that is stored in its own file. */
+    static final int NOT_PACKED = -1;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private BinaryJournal() {
+    }
+
+    static void writeHeader(OutputStream out, int appVersion, int valueCount) throws IOException {
+        writeInt(out, MAGIC);
+        writeVarint(out, VERSION_2);
+        writeVarint(out, appVersion);
+        writeVarint(out, valueCount);
+    }
+
+    static void writeRecord(OutputStream out, int op, String key) throws IOException {
+        out.write(op);
+        writeKey(out, key);
+    }
+
+    static void writeRecord(OutputStream out, int op, String key, long[] lengths)
+            throws IOException {
+        out.write(op);
+        writeKey(out, key);
+        for (long length : lengths) {
+            writeVarint(out, length);
+        }
+    }
+
+    /**
+     * Writes a CLEAN record, a CLEAN_BLOB record if any of the values is a
+     * shared blob, or else a CLEAN_PACKED record if any of the values lives
+     * in a pack file.
+     */
+    static void writeCleanRecord(OutputStream out, String key, long[] lengths, int[] packIds,
+            long[] offsets, String[] blobIds) throws IOException {
+        boolean packed = false;
+        boolean blobs = false;
+        for (int i = 0; i < lengths.length; i++) {
+            packed |= packIds[i] != NOT_PACKED;
+            blobs |= blobIds[i] != null;
+        }
+        if (blobs) {
+            out.write(OP_CLEAN_BLOB);
+            writeKey(out, key);
+            for (int i = 0; i < lengths.length; i++) {
+                writeVarint(out, lengths[i]);
+                if (blobIds[i] != null) {
+                    out.write(LOCATION_BLOB);
+                    writeHex(out, blobIds[i]);
+                } else if (packIds[i] != NOT_PACKED) {
+                    out.write(LOCATION_PACK);
+                    writeVarint(out, packIds[i]);
+                    writeVarint(out, offsets[i]);
+                } else {
+                    out.write(LOCATION_FILE);
+                }
+            }
+            return;
+        }
+        if (!packed) {
+            writeRecord(out, OP_CLEAN, key, lengths);
+            return;
+        }
+        out.write(OP_CLEAN_PACKED);
+        writeKey(out, key);
+        for (int i = 0; i < lengths.length; i++) {
+            writeVarint(out, lengths[i]);
+            writeVarint(out, packIds[i] + 1);
+            if (packIds[i] != NOT_PACKED) {
+                writeVarint(out, offsets[i]);
+            }
+        }
+    }
+
+    static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeHex(OutputStream out, String hex) throws IOException {
+        for (int i = 0; i < hex.length(); i += 2) {
+            out.write((Character.digit(hex.charAt(i), 16) << 4)
+                    | Character.digit(hex.charAt(i + 1), 16));
+        }
+    }
+
+    private static void writeKey(OutputStream out, String key) throws IOException {
+        if (isHexKey(key)) {
+            int byteCount = key.length() / 2;
+            writeVarint(out, ((long) byteCount << 1) | 1);
+            writeHex(out, key);
+        } else {
+            byte[] bytes = key.getBytes(DiskLruCache.UTF_8);
+            writeVarint(out, (long) bytes.length << 1);
+            out.write(bytes);
+        }
+    }
+
+    private static boolean isHexKey(String key) {
+        int length = key.length();
+        if (length == 0 || (length & 1) != 0) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = key.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sequential reader over a binary journal. Call {@link #readHeader} once,
+     * then {@link #next} until it returns false.
+     */
+    static final class Reader {
+        private final InputStream in;
+        private final byte[] buffer;
+        private int position;
+        private int limit;
+        private boolean truncated;
+
+        private final int valueCount;
+        int op;
+        String key;
+        final long[] lengths;
+        final int[] packIds;
+        final long[] offsets;
+        final String[] blobIds;
+
+        Reader(InputStream in, int bufferSize, int valueCount) {
+            this.in = in;
+            this.buffer = new byte[bufferSize];
+            this.valueCount = valueCount;
+            this.lengths = new long[valueCount];
+            this.packIds = new int[valueCount];
+            this.offsets = new long[valueCount];
+            this.blobIds = new String[valueCount];
+        }
+
+        /**
+         * Reads and validates the header.
+         */
+        void readHeader(int appVersion) throws IOException {
+            int magic = readInt();
+            long version = readVarint();
+            long appVersionValue = readVarint();
+            long valueCountValue = readVarint();
+            if (magic != MAGIC
+                    || version != VERSION_2
+                    || appVersionValue != appVersion
+                    || valueCountValue != valueCount) {
+                throw new IOException("unexpected journal header: [" + Integer.toHexString(magic)
+                        + ", " + version + ", " + appVersionValue + ", " + valueCountValue + "]");
+            }
+        }
+
+        /**
+         * Reads the next record into {@link #op}, {@link #key} and, for the
+         * CLEAN records, {@link #lengths}, {@link #packIds}, {@link #offsets}
+         * and {@link #blobIds}. CLEAN_PACKED and CLEAN_BLOB are reported as
+         * CLEAN. Returns false at the end of the journal or at a torn record
+         * at its tail.
+         */
+        boolean next() throws IOException {
+            if (position == limit && !fill()) {
+                return false;
+            }
+            try {
+                op = readByte();
+                if (op < OP_CLEAN || op > OP_CLEAN_BLOB) {
+                    throw new IOException("unexpected journal op: " + op);
+                }
+                key = readKey();
+                if (op == OP_CLEAN) {
+                    for (int i = 0; i < valueCount; i++) {
+                        lengths[i] = readVarint();
+                        packIds[i] = NOT_PACKED;
+                        offsets[i] = 0;
+                        blobIds[i] = null;
+                    }
+                } else if (op == OP_CLEAN_PACKED) {
+                    op = OP_CLEAN;
+                    for (int i = 0; i < valueCount; i++) {
+                        lengths[i] = readVarint();
+                        packIds[i] = (int) readVarint() - 1;
+                        offsets[i] = packIds[i] != NOT_PACKED ? readVarint() : 0;
+                        blobIds[i] = null;
+                    }
+                } else if (op == OP_CLEAN_BLOB) {
+                    op = OP_CLEAN;
+                    for (int i = 0; i < valueCount; i++) {
+                        lengths[i] = readVarint();
+                        packIds[i] = NOT_PACKED;
+                        offsets[i] = 0;
+                        blobIds[i] = null;
+                        int location = readByte();
+                        if (location == LOCATION_PACK) {
+                            packIds[i] = (int) readVarint();
+                            offsets[i] = readVarint();
+                        } else if (location == LOCATION_BLOB) {
+                            blobIds[i] = readHex(BlobStore.ID_BYTES);
+                        } else if (location != LOCATION_FILE) {
+                            throw new IOException("unexpected value location: " + location);
+                        }
+                    }
+                }
+                return true;
+            } catch (EOFException tornRecord) {
+                truncated = true;
+                return false;
+            }
+        }
+
+        /**
+         * Returns true if the journal ended in the middle of a record.
+         */
+        boolean isTruncated() {
+            return truncated;
+        }
+
+        private String readKey() throws IOException {
+            long header = readVarint();
+            int byteCount = (int) (header >>> 1);
+            if (byteCount <= 0 || byteCount > 4096) {
+                throw new IOException("unexpected journal key length: " + byteCount);
+            }
+            if ((header & 1) != 0) {
+                return readHex(byteCount);
+            }
+            byte[] bytes = new byte[byteCount];
+            for (int i = 0; i < byteCount; i++) {
+                bytes[i] = (byte) readByte();
+            }
+            return new String(bytes, DiskLruCache.UTF_8);
+        }
+
+        private String readHex(int byteCount) throws IOException {
+            char[] chars = new char[byteCount * 2];
+            for (int i = 0; i < byteCount; i++) {
+                int b = readByte();
+                chars[2 * i] = HEX_DIGITS[b >>> 4];
+                chars[2 * i + 1] = HEX_DIGITS[b & 0x0F];
+            }
+            return new String(chars);
+        }
+
+        int readInt() throws IOException {
+            return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+
+        long readVarint() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("malformed varint");
+        }
+
+        private int readByte() throws IOException {
+            if (position == limit && !fill()) {
+                throw new EOFException();
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        private boolean fill() throws IOException {
+            int count = in.read(buffer, 0, buffer.length);
+            if (count <= 0) {
+                return false;
+            }
+            position = 0;
+            limit = count;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package org.lance.lib.bitmap.cache;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.lance.lib.bitmap.util.CacheUtils;
+
+/**
+ * Content-addressed value files for {@link DiskLruCache}. With
+ * {@code Options.dedup}, a committed value is named after a fingerprint of
+ * its bytes, {@code blob.<id>}, and entries with identical values share one
+ * file. Each blob counts its references and is deleted, and stops counting
+ * towards the cache size, when the last one is released.
+ *
+ * <p>The id is the CRC-64 of the bytes (the table of
+ * {@link CacheUtils#crc64Long}) followed by the first 8 bytes of their MD5,
+ * computed by {@link FingerprintOutputStream} while the value is written.
+ *
+ * <p>This class is not thread safe; {@link DiskLruCache} calls it while
+ * holding its monitor.
+ *
+ * @author lance
+ */
+final class BlobStore {
+    static final String BLOB_FILE_PREFIX = "blob.";
+    /** The length of a blob id in bytes; ids are twice as many hex digits. */
+    static final int ID_BYTES = 16;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File directory;
+    private final Map<String, Blob> blobs = new HashMap<String, Blob>();
+    private long sharedBytes;
+
+    BlobStore(File directory) {
+        this.directory = directory;
+    }
+
+    private static final class Blob {
+        final long length;
+        int references;
+
+        Blob(long length) {
+            this.length = length;
+        }
+    }
+
+    File getFile(String id) {
+        return new File(directory, BLOB_FILE_PREFIX + id);
+    }
+
+    /**
+     * Stores a freshly written value under {@code id}. If the blob already
+     * exists, {@code dirty} is deleted and the blob gains a reference.
+     * Returns the number of bytes the cache grew by.
+     */
+    long store(String id, File dirty, long length) throws IOException {
+        if (blobs.containsKey(id)) {
+            dirty.delete();
+        } else {
+            File file = getFile(id);
+            file.delete();
+            if (!dirty.renameTo(file)) {
+                throw new IOException("failed to rename " + dirty);
+            }
+        }
+        return addReference(id, length);
+    }
+
+    /**
+     * Adds a reference to blob {@code id}, which must exist on disk. Returns
+     * the number of bytes the cache grew by: {@code length} for the first
+     * reference, 0 otherwise.
+     */
+    long addReference(String id, long length) {
+        Blob blob = blobs.get(id);
+        if (blob == null) {
+            blob = new Blob(length);
+            blobs.put(id, blob);
+        } else {
+            sharedBytes += length;
+        }
+        blob.references++;
+        return blob.references == 1 ? length : 0;
+    }
+
+    /**
+     * Drops a reference to blob {@code id}. Returns the number of bytes the
+     * cache shrank by: the blob's length when this was the last reference,
+     * 0 otherwise. The file of an unreferenced blob is deleted if
+     * {@code delete} is true; while the journal is replayed it is kept since
+     * a later record may refer to it again.
+     */
+    long release(String id, boolean delete) {
+        Blob blob = blobs.get(id);
+        if (blob == null) {
+            return 0;
+        }
+        if (--blob.references > 0) {
+            sharedBytes -= blob.length;
+            return 0;
+        }
+        blobs.remove(id);
+        if (delete) {
+            getFile(id).delete();
+        }
+        return blob.length;
+    }
+
+    /** Returns true if some entry refers to blob {@code id}. */
+    boolean contains(String id) {
+        return blobs.containsKey(id);
+    }
+
+    /**
+     * Returns true if the file of blob {@code id} exists with the given
+     * length.
+     */
+    boolean isIntact(String id, long length) {
+        return getFile(id).length() == length;
+    }
+
+    /**
+     * Deletes the blob files without references.
+     */
+    void deleteUnreferenced() {
+        String[] names = directory.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            if (name.startsWith(BLOB_FILE_PREFIX)
+                    && !blobs.containsKey(name.substring(BLOB_FILE_PREFIX.length()))) {
+                new File(directory, name).delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the bytes that would be stored again without deduplication.
+     */
+    long sharedBytes() {
+        return sharedBytes;
+    }
+
+    int blobCount() {
+        return blobs.size();
+    }
+
+    void clear() {
+        blobs.clear();
+        sharedBytes = 0;
+    }
+
+    /**
+     * Fingerprints the bytes written through it.
+     */
+    static final class FingerprintOutputStream extends FilterOutputStream {
+        private final MessageDigest digest;
+        private long crc = CacheUtils.INITIALCRC;
+
+        FingerprintOutputStream(OutputStream out) {
+            super(out);
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        @Override public void write(int oneByte) throws IOException {
+            write(new byte[] {(byte) oneByte}, 0, 1);
+        }
+
+        @Override public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            crc = CacheUtils.crc64Update(crc, buffer, offset, length);
+            digest.update(buffer, offset, length);
+        }
+
+        /**
+         * Returns the blob id of the bytes written so far. Call once, after
+         * the last write.
+         */
+        String id() {
+            byte[] md5 = digest.digest();
+            char[] chars = new char[ID_BYTES * 2];
+            for (int i = 0; i < 8; i++) {
+                int b = (int) (crc >>> (56 - 8 * i)) & 0xFF;
+                chars[2 * i] = HEX_DIGITS[b >>> 4];
+                chars[2 * i + 1] = HEX_DIGITS[b & 0x0F];
+            }
+            for (int i = 0; i < 8; i++) {
+                int b = md5[i] & 0xFF;
+                chars[16 + 2 * i] = HEX_DIGITS[b >>> 4];
+                chars[16 + 2 * i + 1] = HEX_DIGITS[b & 0x0F];
+            }
+            return new String(chars);
+        }
+    }
+}
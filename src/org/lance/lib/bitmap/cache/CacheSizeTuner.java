@@ -0,0 +1,345 @@
+package org.lance.lib.bitmap.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Chooses the size of a memory cache from its hit-ratio curve, within fixed
+ * bounds. Sizes are in the units of the cache's {@code sizeOf}.
+ *
+ * <p>Every key has a stamp: the total size of all reads and puts when the key
+ * was last put or read. The reuse time of a read is the size accessed since
+ * then, which doesn't depend on the size of the cache. Stamps of evicted keys
+ * ("ghosts") are kept for a while, so reuse times are recorded for misses
+ * that a larger cache would have hit, too. At each decision the histogram of
+ * reuse times is turned into the hit ratio for every size up to the upper
+ * bound: the stack distance of a reuse time t, i.e. the size an LRU cache
+ * needs to hit it, is estimated as the integral of P(reuse time > u) for u
+ * from 0 to t (StatStack).
+ *
+ * <p>After every {@link #WINDOW} reads, {@link #tune} picks the largest size
+ * whose last step still gains a minimum share of the reads per megabyte,
+ * grows to it at once and shrinks toward it one step at a time, but only
+ * once two decisions in a row agree. The gain of a step near the minimum
+ * varies by more than the hysteresis band from one window to the next, so
+ * acting on single decisions made the size go back and forth. The
+ * histogram is then halved, so older windows count less.
+ *
+ * <p>{@link #recordHit} and {@link #recordMiss} never lock, so they can be
+ * called from the UI thread on every read.
+ *
+ * @author lance
+ */
+public class CacheSizeTuner<K> {
+    /** Reads between two decisions. */
+    public static final int WINDOW = 500;
+    /** Sizes considered between zero and the upper bound. */
+    private static final int STEPS = 16;
+    /** Reuse times are recorded up to this multiple of the upper bound. */
+    private static final int REUSE_RANGE = 4;
+    private static final int BUCKETS = STEPS * REUSE_RANGE;
+    /** Most ghosts kept, whatever their sizes. */
+    private static final int MAX_GHOSTS = 4096;
+
+    private final long minSize;
+    private final long maxSize;
+    private final long step;
+    private final float minHitRatioPerStep;
+
+    /** Total size of all reads and puts. */
+    private final AtomicLong clock = new AtomicLong();
+    private final ConcurrentHashMap<K, Stamp> stamps = new ConcurrentHashMap<K, Stamp>();
+    /** Evicted keys, eldest first. */
+    private final LinkedHashMap<K, Boolean> ghosts = new LinkedHashMap<K, Boolean>();
+    /** Reads by reuse time, {@link #step} per bucket. */
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong ghostHitCount = new AtomicLong();
+    private long readsAtLastDecision;
+    /** Reads before the last decision, halved like the histogram. */
+    private long olderReads;
+
+    /** 1 if the last decision wanted to grow, -1 to shrink, else 0. */
+    private int pendingDirection;
+    /** The size the last decision wanted to grow to. */
+    private long pendingTarget;
+    private int growCount;
+    private int shrinkCount;
+    private long lastTarget;
+    private float[] lastCurve = new float[STEPS];
+    private String lastDecision = "none";
+
+    /**
+     * @param minSize the smallest size {@link #tune} returns.
+     * @param maxSize the largest size {@link #tune} returns.
+     * @param minHitRatioPerMb the share of reads a megabyte must gain to be
+     *     worth keeping. Sizes are taken as kilobytes for this.
+     */
+    public CacheSizeTuner(long minSize, long maxSize, float minHitRatioPerMb) {
+        if (minSize <= 0 || maxSize < minSize) {
+            throw new IllegalArgumentException("minSize <= 0 || maxSize < minSize");
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.step = Math.max(1, maxSize / STEPS);
+        this.minHitRatioPerStep = minHitRatioPerMb * step / 1024f;
+        this.lastTarget = minSize;
+    }
+
+    /**
+     * Records a read that found {@code key} in the cache.
+     */
+    public void recordHit(K key) {
+        reads.incrementAndGet();
+        Stamp stamp = stamps.get(key);
+        if (stamp == null) {
+            return;
+        }
+        long now = clock.addAndGet(stamp.size);
+        record(now - stamp.size - stamp.value);
+        stamp.value = now;
+    }
+
+    /**
+     * Records a read that didn't find {@code key}. The put that usually
+     * follows advances the clock.
+     */
+    public void recordMiss(K key) {
+        reads.incrementAndGet();
+        Stamp stamp = stamps.get(key);
+        if (stamp != null) {
+            ghostHitCount.incrementAndGet();
+            record(clock.get() - stamp.value);
+        }
+    }
+
+    /**
+     * Records that {@code key} has been put into the cache with {@code size}.
+     */
+    public void recordPut(K key, int size) {
+        long now = clock.addAndGet(size);
+        Stamp stamp = stamps.get(key);
+        if (stamp == null) {
+            stamp = new Stamp();
+            Stamp previous = stamps.putIfAbsent(key, stamp);
+            if (previous != null) {
+                stamp = previous;
+            }
+        }
+        stamp.size = size;
+        stamp.value = now;
+        synchronized (ghosts) {
+            ghosts.remove(key);
+        }
+    }
+
+    /**
+     * Records that the cache evicted {@code key} to make space. Its stamp is
+     * kept while its reuse time can still be recorded.
+     */
+    public void recordEviction(K key) {
+        long now = clock.get();
+        long range = step * BUCKETS;
+        synchronized (ghosts) {
+            ghosts.put(key, Boolean.TRUE);
+            Iterator<K> i = ghosts.keySet().iterator();
+            while (i.hasNext()) {
+                K eldest = i.next();
+                Stamp stamp = stamps.get(eldest);
+                if (stamp != null && now - stamp.value < range && ghosts.size() <= MAX_GHOSTS) {
+                    break;
+                }
+                i.remove();
+                // If the key has been put again meanwhile, only the reads
+                // until its next put are not recorded.
+                if (stamp != null) {
+                    stamps.remove(eldest, stamp);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records that {@code key} has been removed for some other reason than
+     * lack of space.
+     */
+    public void recordRemoval(K key) {
+        stamps.remove(key);
+        synchronized (ghosts) {
+            ghosts.remove(key);
+        }
+    }
+
+    private void record(long reuseTime) {
+        if (reuseTime >= 0 && reuseTime < step * BUCKETS) {
+            histogram.incrementAndGet((int) (reuseTime / step));
+        }
+    }
+
+    /**
+     * Returns the size the cache should have now, or -1 to keep
+     * {@code currentSize}. Decides at most once per {@link #WINDOW} reads.
+     */
+    public synchronized long tune(long currentSize) {
+        long total = reads.get();
+        long window = total - readsAtLastDecision;
+        if (window < WINDOW) {
+            return -1;
+        }
+        readsAtLastDecision = total;
+        long weightedReads = olderReads + window;
+        float[] curve = hitRatioCurve(weightedReads);
+
+        long target = targetSize(curve, minHitRatioPerStep);
+        // Shrinks only if the steps to give back gain half as much, so that
+        // a gain close to the minimum doesn't make the size go back and forth.
+        long shrinkTarget = targetSize(curve, minHitRatioPerStep / 2);
+        lastTarget = target;
+        lastCurve = curve;
+        olderReads = weightedReads / 2;
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram.set(i, histogram.get(i) / 2);
+        }
+
+        long size = -1;
+        if (target > currentSize) {
+            if (pendingDirection > 0) {
+                size = Math.min(pendingTarget, target);
+                growCount++;
+                pendingDirection = 0;
+            } else {
+                pendingDirection = 1;
+                pendingTarget = target;
+            }
+        } else if (shrinkTarget < currentSize) {
+            if (pendingDirection < 0) {
+                // Losing hits costs more than holding memory a while longer.
+                size = Math.max(shrinkTarget, currentSize - step);
+                shrinkCount++;
+                pendingDirection = 0;
+            } else {
+                pendingDirection = -1;
+            }
+        } else {
+            pendingDirection = 0;
+        }
+        if (size != -1) {
+            lastDecision = currentSize + "->" + size + " (target " + target + ")";
+        }
+        return size;
+    }
+
+    /**
+     * The largest size within the bounds whose last step gains at least
+     * {@code minGain} of the reads.
+     */
+    private long targetSize(float[] curve, float minGain) {
+        long target = minSize;
+        for (int k = STEPS - 1; k >= 0; k--) {
+            float gain = curve[k] - (k > 0 ? curve[k - 1] : 0);
+            if (gain >= minGain) {
+                target = (k + 1) * step;
+                break;
+            }
+        }
+        return Math.max(minSize, Math.min(maxSize, target));
+    }
+
+    /**
+     * The hit ratio of an LRU cache of (k + 1) steps, for each k.
+     */
+    private float[] hitRatioCurve(long weightedReads) {
+        float[] curve = new float[STEPS];
+        long reused = 0;
+        float stackDistance = 0;
+        int k = 0;
+        for (int i = 0; i < BUCKETS && k < STEPS; i++) {
+            long count = histogram.get(i);
+            // Reads whose reuse time is longer than this bucket, including
+            // misses on keys never seen or forgotten.
+            float longer = Math.max(0f, 1f - (float) (reused + count) / weightedReads);
+            // Caches smaller than the stack distance of this bucket only hit
+            // the reads of the buckets before it.
+            float start = stackDistance;
+            stackDistance += step * (longer + (float) count / weightedReads / 2);
+            while (k < STEPS && (k + 1) * step < (start + stackDistance) / 2) {
+                curve[k++] = (float) reused / weightedReads;
+            }
+            reused += count;
+        }
+        while (k < STEPS) {
+            curve[k++] = Math.min(1f, (float) reused / weightedReads);
+        }
+        return curve;
+    }
+
+    public long step() {
+        return step;
+    }
+
+    /** Forgets all keys, e.g. after the cache has been cleared. */
+    public void clear() {
+        synchronized (ghosts) {
+            ghosts.clear();
+            stamps.clear();
+        }
+    }
+
+    public long minSize() {
+        return minSize;
+    }
+
+    public long maxSize() {
+        return maxSize;
+    }
+
+    /** Returns the number of keys with a stamp, in the cache or ghosts. */
+    int stampCount() {
+        return stamps.size();
+    }
+
+    /** Returns the number of misses on keys evicted not long ago. */
+    public long ghostHitCount() {
+        return ghostHitCount.get();
+    }
+
+    public synchronized int growCount() {
+        return growCount;
+    }
+
+    public synchronized int shrinkCount() {
+        return shrinkCount;
+    }
+
+    /** Returns the size chosen by the last decision, before damping. */
+    public synchronized long lastTarget() {
+        return lastTarget;
+    }
+
+    /**
+     * Returns the hit ratio estimated at the last decision for a cache of
+     * each multiple of {@link #step}, up to the upper bound.
+     */
+    public synchronized float[] lastHitRatioCurve() {
+        return lastCurve.clone();
+    }
+
+    @Override public synchronized String toString() {
+        StringBuilder curve = new StringBuilder();
+        for (int k = 0; k < STEPS; k++) {
+            curve.append(k == 0 ? "" : " ").append((int) (lastCurve[k] * 100));
+        }
+        return "CacheSizeTuner[bounds=" + minSize + ".." + maxSize + ",step=" + step
+                + ",target=" + lastTarget + ",grows=" + growCount + ",shrinks=" + shrinkCount
+                + ",ghostHits=" + ghostHitCount.get() + ",last=" + lastDecision
+                + ",curve%=" + curve + "]";
+    }
+
+    private static final class Stamp {
+        volatile long value;
+        volatile int size;
+    }
+}
@@ -0,0 +1,31 @@
+package org.lance.lib.bitmap.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The operations shared by {@link DiskLruCache} and
+ * {@link SegmentedDiskLruCache}. See {@link DiskLruCache} for their contracts.
+ *
+ * @author lance
+ */
+public interface DiskCache extends Closeable {
+    DiskLruCache.Snapshot get(String key) throws IOException;
+
+    DiskLruCache.Editor edit(String key) throws IOException;
+
+    boolean remove(String key) throws IOException;
+
+    File getDirectory();
+
+    long maxSize();
+
+    long size();
+
+    void flush() throws IOException;
+
+    boolean isClosed();
+
+    void delete() throws IOException;
+}
@@ -17,35 +17,54 @@
 package org.lance.lib.bitmap.cache;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.lance.lib.bitmap.util.ByteBufferInputStream;
 
 /**
  ******************************************************************************
@@ -97,23 +116,40 @@ import java.util.concurrent.TimeUnit;
  * Callers should handle other problems by catching {@code IOException} and
  * responding appropriately.
  */
-public final class DiskLruCache implements Closeable {
-    static final String JOURNAL_FILE = "journal";
-    static final String JOURNAL_FILE_TMP = "journal.tmp";
+public final class DiskLruCache implements DiskCache {
+    static final String JOURNAL_FILE = "journal.bin";
+    static final String JOURNAL_FILE_TMP = "journal.bin.tmp";
+    static final String JOURNAL_FILE_LEGACY = "journal";
+    static final String JOURNAL_FILE_LEGACY_TMP = "journal.tmp";
+    static final String CHECKPOINT_FILE = "journal.idx";
+    static final String CHECKPOINT_FILE_TMP = "journal.idx.tmp";
+    /** Written by the executor without the monitor, so it can't clash with close(). */
+    static final String CHECKPOINT_FILE_BACKGROUND_TMP = "journal.idx.bg.tmp";
     static final String MAGIC = "libcore.io.DiskLruCache";
     static final String VERSION_1 = "1";
     static final long ANY_SEQUENCE_NUMBER = -1;
+    /** The sequence number of snapshots read before the index was loaded. */
+    static final long UNINDEXED_SEQUENCE_NUMBER = -2;
     private static final String CLEAN = "CLEAN";
     private static final String DIRTY = "DIRTY";
     private static final String REMOVE = "REMOVE";
     private static final String READ = "READ";
 
-    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final int IO_BUFFER_SIZE = 8 * 1024;
+    /** UTF-8 keys of this length always fit the journal's 4096 byte key limit. */
+    private static final int MAX_KEY_LENGTH = 1024;
+    /** The most threads that stat files while salvaging a corrupt journal. */
+    private static final int SALVAGE_THREADS = 4;
+    /** Clock mode rewrites the checkpoint after this many reads. */
+    private static final int CHECKPOINT_ACCESS_THRESHOLD = 2000;
 
     /*
-     * This cache uses a journal file named "journal". A typical journal file
-     * looks like this:
+     * This cache uses a binary journal file named "journal.bin"; its layout is
+     * described in {@link BinaryJournal}. It carries the same records as the
+     * text journal of libcore, which was named "journal" and which is still
+     * read once to migrate caches written by older versions. A typical text
+     * journal file looks like this:
      *     libcore.io.DiskLruCache
      *     1
      *     100
@@ -147,22 +183,111 @@ public final class DiskLruCache implements Closeable {
      *
      * The journal file is appended to as cache operations occur. The journal may
      * occasionally be compacted by dropping redundant lines. A temporary file named
-     * "journal.tmp" will be used during compaction; that file should be deleted if
-     * it exists when the cache is opened.
+     * "journal.bin.tmp" will be used during compaction; that file should be deleted
+     * if it exists when the cache is opened. The background compaction only
+     * holds the monitor to copy the entries and to swap the files; records
+     * appended while it writes are captured and added to the new journal.
+     *
+     * An index checkpoint named "journal.idx" is written on close() and after
+     * each compaction. It holds every entry in LRU order, the total size and
+     * the journal offset it is valid up to. Opening loads the checkpoint and
+     * only replays the journal records written after that offset. Compaction
+     * deletes the checkpoint before it replaces the journal, so a checkpoint
+     * never refers to a different journal than the one on disk. Compaction
+     * writes the new checkpoint from the same copy of the entries as the new
+     * journal, to "journal.idx.bg.tmp" outside the monitor, and only renames
+     * it when it swaps the journals.
+     *
+     * With Options.packed, committed values are appended to shared pack files
+     * (see PackFileStore) instead of being stored as one "key.N" file each.
+     * Their locations are recorded in CLEAN_PACKED journal records. A cache
+     * can hold entries of both kinds, so switching the option doesn't lose
+     * data.
+     *
+     * With Options.clock, reads don't append READ records. Entries are kept
+     * in insertion order and get() only sets a reference bit; eviction sweeps
+     * from the eldest entry and gives referenced entries a second chance by
+     * clearing the bit and moving them to the back. The order and the
+     * reference bits (as READ records) are saved by the checkpoint, which is
+     * rewritten in the background after every CHECKPOINT_ACCESS_THRESHOLD
+     * reads. Only copying the entries holds the monitor; the file is written
+     * without it.
+     *
+     * With Options.admission, a new entry that would force an eviction is
+     * only kept if a frequency sketch of recent get() calls rates its key at
+     * least as popular as the entry that would be evicted (TinyLFU).
+     * Otherwise its commit is turned into an abort.
+     *
+     * With Options.lazyOpen, open() returns at once and the checkpoint and
+     * journal are loaded on the cache's executor. Until then get() looks for
+     * the "key.N" files directly, without the monitor, and everything else
+     * waits for the index. A packed or deduplicating cache keeps its values
+     * elsewhere, so there get() waits for the index too.
+     *
+     * A journal with a corrupt record isn't thrown away. The records before
+     * it are kept, and the directory is scanned for "key.N" files that
+     * complete the picture. Entries whose files disagree with the journal are
+     * dropped; complete sets of files the journal no longer mentions become
+     * entries again, most recently modified last. The journal is then
+     * rewritten. Only a bad header still wipes the cache.
      */
 
     private final File directory;
     private final File journalFile;
     private final File journalFileTmp;
+    private final File legacyJournalFile;
+    private final File checkpointFile;
+    private final File checkpointFileTmp;
+    private final File backgroundCheckpointFileTmp;
     private final int appVersion;
     private final long maxSize;
     private final int valueCount;
+    private final Options options;
+    private final PackFileStore packStore;
+    private final BlobStore blobStore;
     private long size = 0;
-    private Writer journalWriter;
-    private final LinkedHashMap<String, Entry> lruEntries
-            = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    private JournalWriter journalWriter;
+    private final JournalWriter.Stats journalStats = new JournalWriter.Stats();
+    /** Scratch space to encode one record. Guarded by this. */
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(64);
+    private final LinkedHashMap<String, Entry> lruEntries;
     private int redundantOpCount;
 
+    /** Reads since the last checkpoint in clock mode. */
+    private int accessesSinceCheckpoint;
+
+    /** Incremented whenever the journal file is replaced. Guarded by this. */
+    private int journalGeneration;
+
+    private final long highWatermark;
+    private final long lowWatermark;
+    /** When size last crossed the high watermark, or 0 if no trim is pending. */
+    private long trimStartNanos;
+    private long lastTrimLagNanos;
+    private long maxTrimLagNanos;
+    private long evictionCount;
+    private long evictedBytes;
+
+    /** False until the checkpoint and journal have been loaded. */
+    private volatile boolean indexed;
+    private final CountDownLatch indexLatch = new CountDownLatch(1);
+
+    /** Request frequencies for Options.admission, or null. */
+    private final FrequencySketch admissionSketch;
+    private long rejectedAdmissions;
+
+    /** Entries that had a DIRTY record while the journal was replayed on open. */
+    private List<Entry> replayedDirtyEntries = new ArrayList<Entry>();
+
+    /**
+     * Records appended while compactJournal() writes the new journal, or
+     * null if no compaction is running. Guarded by this.
+     */
+    private ByteArrayOutputStream compactionCapture;
+
+    /** Set when the journal replay stopped at a corrupt record. */
+    private boolean salvageRequired;
+
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
@@ -271,27 +396,123 @@ public final class DiskLruCache implements Closeable {
             60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         @Override public Void call() throws Exception {
+            trimInBatches();
+            boolean compact;
+            Checkpoint checkpoint = null;
+            int generation;
             synchronized (DiskLruCache.this) {
                 if (journalWriter == null) {
                     return null; // closed
                 }
-                trimToSize();
-                if (journalRebuildRequired()) {
-                    rebuildJournal();
-                    redundantOpCount = 0;
+                compact = journalRebuildRequired();
+                if (!compact && checkpointRequired()) {
+                    journalWriter.sync();
+                    checkpoint = snapshotCheckpoint(journalFile.length());
                 }
+                generation = journalGeneration;
             }
+            if (checkpoint != null
+                    && writeCheckpointFile(checkpoint, backgroundCheckpointFileTmp)) {
+                synchronized (DiskLruCache.this) {
+                    // the checkpoint must not outlive the journal it was taken from,
+                    // and close() has written a newer one
+                    if (journalWriter != null && generation == journalGeneration) {
+                        installCheckpoint(backgroundCheckpointFileTmp);
+                    } else {
+                        backgroundCheckpointFileTmp.delete();
+                    }
+                }
+            }
+            if (compact) {
+                compactJournal();
+            }
+            compactPacks();
             return null;
         }
     };
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    /**
+     * Optional behaviour of a cache, passed to
+     * {@link DiskLruCache#open(File, int, int, long, Options)}. Must not be
+     * changed after the cache has been opened.
+     */
+    public static final class Options {
+        /**
+         * Append values to shared pack files instead of storing one file per
+         * value. Saves filesystem metadata work for many small values.
+         */
+        public boolean packed;
+        /** The size at which a new pack file is started. */
+        public long packFileSize = 4 * 1024 * 1024;
+        /**
+         * Batch journal records and write them from a background thread at
+         * this interval instead of flushing the journal on every edit and
+         * flush(). 0 disables group commit.
+         */
+        public long groupCommitIntervalMillis;
+        /** The number of pending records that commits a batch early. */
+        public int groupCommitRecords = 64;
+        /**
+         * Track reads with an in-memory reference bit and evict with a CLOCK
+         * sweep instead of appending a READ record for every hit.
+         */
+        public boolean clock;
+        /**
+         * Reject new entries that are requested less often than the entry
+         * they would evict. Frequencies are counted by get(), so an entry
+         * that is edited without being looked up first is rarely admitted
+         * into a full cache.
+         */
+        public boolean admission;
+        /** The number of entries the admission sketch is sized for. */
+        public int admissionExpectedEntries = 4096;
+        /**
+         * Background trimming starts when the size exceeds this fraction of
+         * maxSize. Until it catches up the cache may be larger than maxSize.
+         */
+        public float trimHighWatermark = 1.0f;
+        /** Background trimming evicts until the size is this fraction of maxSize. */
+        public float trimLowWatermark = 0.9f;
+        /** The number of entries evicted per hold of the cache's monitor. */
+        public int trimBatchSize = 16;
+        /**
+         * Return from open() immediately and load the index in the
+         * background. Reads are served from the value files meanwhile.
+         * Values in pack files or blobs can't be found without the index,
+         * so with {@link #packed} or {@link #dedup} reads wait for it.
+         */
+        public boolean lazyOpen;
+        /**
+         * Store each value in a file named after a fingerprint of its bytes
+         * so entries with identical values share one file, counted once
+         * towards maxSize. Ignored while {@link #packed}.
+         */
+        public boolean dedup;
+        /** With {@link #lazyOpen}, the index isn't loaded until this opens. */
+        CountDownLatch indexGate;
+    }
+
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+            Options options) {
         this.directory = directory;
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        this.legacyJournalFile = new File(directory, JOURNAL_FILE_LEGACY);
+        this.checkpointFile = new File(directory, CHECKPOINT_FILE);
+        this.checkpointFileTmp = new File(directory, CHECKPOINT_FILE_TMP);
+        this.backgroundCheckpointFileTmp = new File(directory, CHECKPOINT_FILE_BACKGROUND_TMP);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        this.options = options;
+        this.packStore = new PackFileStore(directory, options.packFileSize);
+        this.blobStore = new BlobStore(directory);
+        this.lruEntries = new LinkedHashMap<String, Entry>(0, 0.75f, !options.clock);
+        this.admissionSketch = options.admission
+                ? new FrequencySketch(options.admissionExpectedEntries) : null;
+        // rounded, since 0.9f widened to a double is 0.8999999761581421
+        this.highWatermark = Math.round(maxSize * (double) options.trimHighWatermark);
+        this.lowWatermark = Math.round(maxSize * (double) options.trimLowWatermark);
     }
 
     /**
@@ -306,38 +527,410 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, new Options());
+    }
+
+    /**
+     * Opens the cache in {@code directory} with {@code options}, creating a
+     * cache if none exists there.
+     *
+     * @see #open(File, int, int, long)
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            Options options) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
         if (valueCount <= 0) {
             throw new IllegalArgumentException("valueCount <= 0");
         }
+        if (options.trimLowWatermark > options.trimHighWatermark) {
+            throw new IllegalArgumentException("trimLowWatermark > trimHighWatermark");
+        }
 
+        final DiskLruCache cache
+                = new DiskLruCache(directory, appVersion, valueCount, maxSize, options);
+        if (options.lazyOpen) {
+            cache.executorService.submit(new Callable<Void>() {
+                @Override public Void call() throws Exception {
+                    if (cache.options.indexGate != null) {
+                        cache.options.indexGate.await();
+                    }
+                    cache.index();
+                    return null;
+                }
+            });
+        } else {
+            cache.index();
+        }
+        return cache;
+    }
+
+    /**
+     * Loads the checkpoint and the journal, replacing a corrupt cache with an
+     * empty one. If even that fails the cache is left closed.
+     */
+    private synchronized void index() throws IOException {
+        try {
+            load();
+        } finally {
+            indexed = true;
+            indexLatch.countDown();
+        }
+    }
+
+    private void load() throws IOException {
         // prefer to pick up where we left off
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
-        if (cache.journalFile.exists()) {
+        if (journalFile.exists()) {
             try {
-                cache.readJournal();
-                cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
-                return cache;
+                long journalOffset = readCheckpoint();
+                boolean truncated = readJournal(journalOffset);
+                if (salvageRequired) {
+                    salvage();
+                }
+                processJournal();
+                if (truncated) {
+                    // drop the torn record so that new records aren't appended after it
+                    rebuildJournal();
+                } else {
+                    journalWriter = newJournalWriter();
+                }
+                return;
             } catch (IOException journalIsCorrupt) {
 //                System.logW("DiskLruCache " + directory + " is corrupt: "
 //                        + journalIsCorrupt.getMessage() + ", removing");
-                cache.delete();
+                reset();
+            }
+        } else if (legacyJournalFile.exists()) {
+            // migrate a cache written with the libcore text journal
+            try {
+                readLegacyJournal();
+                processJournal();
+                rebuildJournal();
+                deleteIfExists(legacyJournalFile);
+                return;
+            } catch (IOException journalIsCorrupt) {
+                reset();
             }
         }
 
         // create a new empty cache
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
-        cache.rebuildJournal();
-        return cache;
+        rebuildJournal();
+    }
+
+    /**
+     * Forgets everything loaded so far and deletes the directory's contents.
+     */
+    private void reset() throws IOException {
+        closeQuietly(journalWriter);
+        journalWriter = null;
+        forgetIndex();
+        redundantOpCount = 0;
+        if (directory.exists()) {
+            deleteContents(directory);
+        }
+    }
+
+    /**
+     * Forgets the entries and the blob and pack accounting loaded so far,
+     * leaving the files alone.
+     */
+    private void forgetIndex() {
+        packStore.clear();
+        blobStore.clear();
+        lruEntries.clear();
+        replayedDirtyEntries = new ArrayList<Entry>();
+        salvageRequired = false;
+        size = 0;
+    }
+
+    /**
+     * Blocks until the index has been loaded. Must not be called while
+     * holding the monitor before that, since loading needs it.
+     */
+    private void awaitIndex() {
+        boolean interrupted = false;
+        while (!indexed) {
+            try {
+                indexLatch.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static OutputStream newFileWriter(File file, boolean append) throws IOException {
+        return new BufferedOutputStream(new FileOutputStream(file, append), IO_BUFFER_SIZE);
+    }
+
+    private JournalWriter newJournalWriter() throws IOException {
+        return new JournalWriter(newFileWriter(journalFile, true), journalStats,
+                options.groupCommitIntervalMillis, options.groupCommitRecords);
+    }
+
+    /** Appends a record without values to the journal. */
+    private void journalRecord(int op, String key) throws IOException {
+        recordBuffer.reset();
+        BinaryJournal.writeRecord(recordBuffer, op, key);
+        appendRecord();
+    }
+
+    /** Appends a CLEAN or CLEAN_PACKED record for {@code entry} to the journal. */
+    private void journalCleanRecord(Entry entry) throws IOException {
+        recordBuffer.reset();
+        writeCleanRecord(recordBuffer, entry);
+        appendRecord();
+    }
+
+    private void appendRecord() throws IOException {
+        recordBuffer.writeTo(journalWriter);
+        journalWriter.endRecord();
+        if (compactionCapture != null) {
+            recordBuffer.writeTo(compactionCapture);
+        }
+    }
+
+    /**
+     * Loads the index checkpoint if there is a valid one. Returns the journal
+     * offset the checkpoint covers, or 0 if the whole journal must be replayed.
+     */
+    private long readCheckpoint() {
+        if (!checkpointFile.exists()) {
+            return 0;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(checkpointFile);
+            FileChannel channel = in.getChannel();
+            long fileLength = channel.size();
+            if (fileLength < 8 || fileLength > Integer.MAX_VALUE) {
+                throw new IOException("unexpected checkpoint length: " + fileLength);
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+            int contentLength = (int) fileLength - 4;
+            if (checksum(mapped, contentLength) != mapped.getInt(contentLength)) {
+                throw new IOException("checkpoint checksum mismatch");
+            }
+            mapped.limit(contentLength);
+
+            BinaryJournal.Reader reader = new BinaryJournal.Reader(
+                    new ByteBufferInputStream(mapped), IO_BUFFER_SIZE, valueCount);
+            int magic = reader.readInt();
+            long version = reader.readVarint();
+            long appVersionValue = reader.readVarint();
+            long valueCountValue = reader.readVarint();
+            long journalOffset = reader.readVarint();
+            long checkpointSize = reader.readVarint();
+            long recordCount = reader.readVarint();
+            if (magic != BinaryJournal.CHECKPOINT_MAGIC
+                    || version != BinaryJournal.VERSION_2
+                    || appVersionValue != appVersion
+                    || valueCountValue != valueCount
+                    || journalOffset > journalFile.length()) {
+                throw new IOException("unexpected checkpoint header");
+            }
+            for (long i = 0; i < recordCount; i++) {
+                if (!reader.next()) {
+                    throw new IOException("checkpoint ended after " + i + " records");
+                }
+                readJournalRecord(reader);
+            }
+            if (size != checkpointSize) {
+                throw new IOException("checkpoint size mismatch");
+            }
+            return journalOffset;
+        } catch (IOException e) {
+            // fall back to replaying the whole journal; the records read so far
+            // have already taken blob references
+            forgetIndex();
+            checkpointFile.delete();
+            return 0;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static int checksum(MappedByteBuffer buffer, int length) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[IO_BUFFER_SIZE];
+        ByteBufferInputStream in = new ByteBufferInputStream(buffer);
+        int remaining = length;
+        while (remaining > 0) {
+            int count = in.read(chunk, 0, Math.min(chunk.length, remaining));
+            crc.update(chunk, 0, count);
+            remaining -= count;
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes the index checkpoint for a journal that currently ends at
+     * {@code journalOffset}. The journal writer must have been flushed.
+     * Failing to write a checkpoint is not an error; the next open will
+     * replay the whole journal instead.
+     */
+    private void writeCheckpoint(long journalOffset) {
+        if (writeCheckpointFile(snapshotCheckpoint(journalOffset), checkpointFileTmp)) {
+            installCheckpoint(checkpointFileTmp);
+        } else {
+            checkpointFile.delete();
+        }
     }
 
-    private void readJournal() throws IOException {
-        InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
+    /**
+     * Encodes a checkpoint of the current entries, valid for the journal up
+     * to {@code journalOffset}, so that it can be written to the file
+     * without holding the monitor.
+     */
+    private Checkpoint snapshotCheckpoint(long journalOffset) {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        int recordCount = 0;
+        try {
+            for (Entry entry : lruEntries.values()) {
+                if (entry.currentEditor != null) {
+                    BinaryJournal.writeRecord(records, BinaryJournal.OP_DIRTY, entry.key);
+                } else {
+                    writeCleanRecord(records, entry);
+                }
+                recordCount++;
+                if (entry.referenced) {
+                    BinaryJournal.writeRecord(records, BinaryJournal.OP_READ, entry.key);
+                    recordCount++;
+                }
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e); // ByteArrayOutputStream doesn't throw
+        }
+        accessesSinceCheckpoint = 0;
+        return new Checkpoint(journalOffset, size, recordCount, records);
+    }
+
+    /**
+     * Writes {@code checkpoint} to {@code tmp}. Returns false, leaving no
+     * file behind, if that fails.
+     */
+    private boolean writeCheckpointFile(Checkpoint checkpoint, File tmp) {
+        FileOutputStream fileOut = null;
+        try {
+            fileOut = new FileOutputStream(tmp);
+            CRC32 crc = new CRC32();
+            OutputStream out = new BufferedOutputStream(
+                    new CheckedOutputStream(fileOut, crc), IO_BUFFER_SIZE);
+            BinaryJournal.writeInt(out, BinaryJournal.CHECKPOINT_MAGIC);
+            BinaryJournal.writeVarint(out, BinaryJournal.VERSION_2);
+            BinaryJournal.writeVarint(out, appVersion);
+            BinaryJournal.writeVarint(out, valueCount);
+            BinaryJournal.writeVarint(out, checkpoint.journalOffset);
+            BinaryJournal.writeVarint(out, checkpoint.size);
+            BinaryJournal.writeVarint(out, checkpoint.recordCount);
+            checkpoint.records.writeTo(out);
+            out.flush();
+            BinaryJournal.writeInt(fileOut, (int) crc.getValue());
+            fileOut.close();
+            return true;
+        } catch (IOException e) {
+            closeQuietly(fileOut);
+            tmp.delete();
+            return false;
+        }
+    }
+
+    /** Replaces the checkpoint with the file written to {@code tmp}. */
+    private void installCheckpoint(File tmp) {
+        if (!tmp.renameTo(checkpointFile)) {
+            tmp.delete();
+            checkpointFile.delete();
+        }
+    }
+
+    /**
+     * Replays the binary journal from {@code offset}, which is either 0 or a
+     * record boundary recorded by a checkpoint. Returns true if it ended with a
+     * torn record.
+     */
+    private boolean readJournal(long offset) throws IOException {
+        InputStream in = new FileInputStream(journalFile);
+        try {
+            BinaryJournal.Reader reader = new BinaryJournal.Reader(in, IO_BUFFER_SIZE, valueCount);
+            if (offset == 0) {
+                reader.readHeader(appVersion);
+            } else {
+                long skipped = 0;
+                while (skipped < offset) {
+                    long count = in.skip(offset - skipped);
+                    if (count <= 0) {
+                        throw new EOFException();
+                    }
+                    skipped += count;
+                }
+            }
+            try {
+                while (reader.next()) {
+                    readJournalRecord(reader);
+                }
+            } catch (IOException corruptRecord) {
+                // keep what was read so far; salvage() recovers the rest from the files
+                salvageRequired = true;
+                return true;
+            }
+            return reader.isTruncated();
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void readJournalRecord(BinaryJournal.Reader reader) {
+        int op = reader.op;
+        String key = reader.key;
+        if (op == BinaryJournal.OP_REMOVE) {
+            Entry removed = lruEntries.remove(key);
+            if (removed != null) {
+                size -= removed.totalLength();
+                releaseBlobs(removed);
+            }
+            return;
+        }
+
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        }
+
+        if (op == BinaryJournal.OP_CLEAN) {
+            entry.readable = true;
+            entry.currentEditor = null;
+            size -= entry.totalLength();
+            releaseBlobs(entry);
+            System.arraycopy(reader.lengths, 0, entry.lengths, 0, valueCount);
+            System.arraycopy(reader.packIds, 0, entry.packIds, 0, valueCount);
+            System.arraycopy(reader.offsets, 0, entry.offsets, 0, valueCount);
+            System.arraycopy(reader.blobIds, 0, entry.blobIds, 0, valueCount);
+            for (int i = 0; i < valueCount; i++) {
+                if (entry.blobIds[i] != null) {
+                    size += blobStore.addReference(entry.blobIds[i], entry.lengths[i]);
+                }
+            }
+            size += entry.totalLength();
+        } else if (op == BinaryJournal.OP_DIRTY) {
+            entry.currentEditor = new Editor(entry);
+            replayedDirtyEntries.add(entry);
+        } else if (op == BinaryJournal.OP_READ && options.clock) {
+            entry.referenced = true;
+        }
+        // READ: in LRU mode this work was already done by calling lruEntries.get()
+    }
+
+    /**
+     * Reads a journal in the libcore text format. Only used to migrate caches
+     * written by older versions.
+     */
+    private void readLegacyJournal() throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(legacyJournalFile), IO_BUFFER_SIZE);
         try {
             String magic = readAsciiLine(in);
             String version = readAsciiLine(in);
@@ -373,7 +966,10 @@ public final class DiskLruCache implements Closeable {
 
         String key = parts[1];
         if (parts[0].equals(REMOVE) && parts.length == 2) {
-            lruEntries.remove(key);
+            Entry removed = lruEntries.remove(key);
+            if (removed != null) {
+                size -= removed.totalLength();
+            }
             return;
         }
 
@@ -386,9 +982,12 @@ public final class DiskLruCache implements Closeable {
         if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
             entry.readable = true;
             entry.currentEditor = null;
+            size -= entry.totalLength();
             entry.setLengths(copyOfRange(parts, 2, parts.length));
+            size += entry.totalLength();
         } else if (parts[0].equals(DIRTY) && parts.length == 2) {
             entry.currentEditor = new Editor(entry);
+            replayedDirtyEntries.add(entry);
         } else if (parts[0].equals(READ) && parts.length == 2) {
             // this work was already done by calling lruEntries.get()
         } else {
@@ -397,24 +996,312 @@ public final class DiskLruCache implements Closeable {
     }
 
     /**
-     * Computes the initial size and collects garbage as a part of opening the
-     * cache. Dirty entries are assumed to be inconsistent and will be deleted.
+     * Collects garbage as a part of opening the cache. Dirty entries are
+     * assumed to be inconsistent and will be deleted. The size has already
+     * been maintained while replaying, so only the entries that were dirty at
+     * some point of the replay are visited.
+     */
+    private void processJournal() throws IOException {
+        deleteIfExists(journalFileTmp);
+        deleteIfExists(checkpointFileTmp);
+        deleteIfExists(backgroundCheckpointFileTmp);
+        deleteIfExists(new File(directory, JOURNAL_FILE_LEGACY_TMP));
+        for (Entry entry : replayedDirtyEntries) {
+            if (entry.currentEditor == null || lruEntries.get(entry.key) != entry) {
+                continue; // committed or removed later in the journal
+            }
+            entry.currentEditor = null;
+            size -= entry.totalLength();
+            releaseBlobs(entry);
+            for (int t = 0; t < valueCount; t++) {
+                deleteIfExists(entry.getCleanFile(t));
+                deleteIfExists(entry.getDirtyFile(t));
+            }
+            lruEntries.remove(entry.key);
+        }
+        replayedDirtyEntries = null;
+        processPacks();
+        processBlobs();
+        if (options.groupCommitIntervalMillis > 0) {
+            deleteOrphanedFiles();
+        }
+    }
+
+    /**
+     * Reconciles the entries read from the valid prefix of a corrupt journal
+     * with the value files in the directory. The files are stat'ed in
+     * parallel since that dominates for a large cache.
+     */
+    private void salvage() throws IOException {
+        String[] names = directory.list();
+        if (names == null) {
+            throw new IOException("not a directory: " + directory);
+        }
+        Map<String, long[]> stats = statFiles(names);
+
+        // an interrupted edit may have completed, so its files are rediscovered below
+        for (Entry entry : replayedDirtyEntries) {
+            if (entry.currentEditor != null && lruEntries.get(entry.key) == entry) {
+                entry.currentEditor = null;
+                size -= entry.totalLength();
+                releaseBlobs(entry);
+                lruEntries.remove(entry.key);
+            }
+        }
+        replayedDirtyEntries.clear();
+
+        // drop entries whose files were changed or deleted by the lost records
+        for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
+            Entry entry = i.next();
+            for (int t = 0; t < valueCount; t++) {
+                if (entry.packIds[t] != BinaryJournal.NOT_PACKED || entry.blobIds[t] != null) {
+                    continue; // checked by processPacks() and processBlobs()
+                }
+                long[] stat = stats.get(entry.key + "." + t);
+                if (stat == null || stat[0] != entry.lengths[t]) {
+                    size -= entry.totalLength();
+                    releaseBlobs(entry);
+                    i.remove();
+                    break;
+                }
+            }
+        }
+
+        // group the remaining value files by key
+        Map<String, Entry> found = new HashMap<String, Entry>();
+        final Map<String, Long> modified = new HashMap<String, Long>();
+        for (Map.Entry<String, long[]> file : stats.entrySet()) {
+            String name = file.getKey();
+            int dot = name.lastIndexOf('.');
+            int index = parseValueIndex(name, dot);
+            if (index < 0) {
+                continue;
+            }
+            String key = name.substring(0, dot);
+            if (lruEntries.containsKey(key)) {
+                continue;
+            }
+            Entry entry = found.get(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                Arrays.fill(entry.lengths, -1);
+                found.put(key, entry);
+            }
+            entry.lengths[index] = file.getValue()[0];
+            Long mtime = modified.get(key);
+            modified.put(key, Math.max(mtime != null ? mtime : 0, file.getValue()[1]));
+        }
+
+        List<Entry> recovered = new ArrayList<Entry>();
+        for (Entry entry : found.values()) {
+            boolean complete = true;
+            for (long length : entry.lengths) {
+                complete &= length >= 0;
+            }
+            if (complete) {
+                recovered.add(entry);
+            } else {
+                for (int t = 0; t < valueCount; t++) {
+                    entry.getCleanFile(t).delete();
+                }
+            }
+        }
+        Collections.sort(recovered, new Comparator<Entry>() {
+            @Override public int compare(Entry a, Entry b) {
+                long ma = modified.get(a.key);
+                long mb = modified.get(b.key);
+                return ma < mb ? -1 : (ma == mb ? 0 : 1);
+            }
+        });
+        for (Entry entry : recovered) {
+            entry.readable = true;
+            lruEntries.put(entry.key, entry);
+            size += entry.totalLength();
+        }
+
+        // dirty files of lost DIRTY records
+        for (String name : stats.keySet()) {
+            if (name.endsWith(".tmp")) {
+                new File(directory, name).delete();
+            }
+        }
+        salvageRequired = false;
+    }
+
+    /**
+     * Returns N for a value file named "key.N", or -1 for any other file,
+     * including the journal files and dirty files.
+     */
+    private int parseValueIndex(String name, int dot) {
+        if (dot <= 0 || name.startsWith(PackFileStore.PACK_FILE_PREFIX)
+                || name.startsWith(BlobStore.BLOB_FILE_PREFIX)) {
+            return -1;
+        }
+        String key = name.substring(0, dot);
+        try {
+            validateKey(key);
+            int index = Integer.parseInt(name.substring(dot + 1));
+            return index >= 0 && index < valueCount ? index : -1;
+        } catch (IllegalArgumentException e) {
+            return -1; // also NumberFormatException
+        }
+    }
+
+    /**
+     * Returns the length and modification time of each named file. The
+     * names are split among a few threads.
+     */
+    private Map<String, long[]> statFiles(String[] names) throws IOException {
+        int threads = Math.max(1, Math.min(SALVAGE_THREADS,
+                Runtime.getRuntime().availableProcessors()));
+        int chunk = (names.length + threads - 1) / threads;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<Map<String, long[]>>> tasks
+                    = new ArrayList<Callable<Map<String, long[]>>>();
+            for (int start = 0; start < names.length; start += chunk) {
+                final String[] part = copyOfRange(names, start,
+                        Math.min(names.length, start + chunk));
+                tasks.add(new Callable<Map<String, long[]>>() {
+                    @Override public Map<String, long[]> call() {
+                        Map<String, long[]> result = new HashMap<String, long[]>();
+                        for (String name : part) {
+                            File file = new File(directory, name);
+                            if (file.isFile()) {
+                                result.put(name, new long[] {file.length(), file.lastModified()});
+                            }
+                        }
+                        return result;
+                    }
+                });
+            }
+            Map<String, long[]> stats = new HashMap<String, long[]>();
+            for (Future<Map<String, long[]>> future : pool.invokeAll(tasks)) {
+                stats.putAll(future.get());
+            }
+            return stats;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while scanning " + directory);
+        } catch (ExecutionException e) {
+            throw new IOException("failed to scan " + directory + ": " + e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * With group commit an editor may create its dirty files before its DIRTY
+     * record reaches the journal, and a commit renames them to value files or
+     * blobs before its CLEAN record does. So a crash can leave files the
+     * journal doesn't know about. Entries that were still dirty have been
+     * dropped by now, so every dirty file, and every value file or blob no
+     * entry refers to, is garbage. Pack files are handled by processPacks();
+     * bytes appended for lost records are dead and get compacted away.
+     */
+    private void deleteOrphanedFiles() {
+        String[] names = directory.list();
+        if (names == null) {
+            return;
+        }
+        // lruEntries.get() would reorder the entries, so collect the names first
+        Set<String> valueFiles = new HashSet<String>();
+        for (Entry entry : lruEntries.values()) {
+            for (int t = 0; t < valueCount; t++) {
+                if (entry.packIds[t] == BinaryJournal.NOT_PACKED && entry.blobIds[t] == null) {
+                    valueFiles.add(entry.getCleanFile(t).getName());
+                }
+            }
+        }
+        for (String name : names) {
+            boolean orphan;
+            if (name.endsWith(".tmp")) {
+                orphan = true;
+            } else if (name.startsWith(BlobStore.BLOB_FILE_PREFIX)) {
+                orphan = !blobStore.contains(name.substring(BlobStore.BLOB_FILE_PREFIX.length()));
+            } else {
+                orphan = parseValueIndex(name, name.lastIndexOf('.')) >= 0
+                        && !valueFiles.contains(name);
+            }
+            if (orphan) {
+                new File(directory, name).delete();
+            }
+        }
+    }
+
+    /**
+     * Accounts the live bytes of every pack file and drops the entries whose
+     * pack is missing or truncated. Skipped when no pack files exist and the
+     * cache isn't packed, so unpacked caches don't visit every entry.
+     */
+    private void processPacks() {
+        packStore.scan();
+        if (!options.packed && !packStore.hasPacks()) {
+            return;
+        }
+        for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
+            Entry entry = i.next();
+            boolean intact = true;
+            for (int t = 0; t < valueCount; t++) {
+                if (entry.packIds[t] != BinaryJournal.NOT_PACKED) {
+                    intact &= packStore.addLive(entry.packIds[t], entry.offsets[t], entry.lengths[t]);
+                }
+            }
+            if (!intact) {
+                discardValues(entry);
+                i.remove();
+            }
+        }
+        packStore.deleteUnused();
+    }
+
+    /**
+     * Drops the entries whose blob files are missing or truncated, and
+     * deletes the blob files no entry refers to.
+     */
+    private void processBlobs() {
+        if (!options.dedup && blobStore.blobCount() == 0) {
+            return;
+        }
+        for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
+            Entry entry = i.next();
+            for (int t = 0; t < valueCount; t++) {
+                if (entry.blobIds[t] != null
+                        && !blobStore.isIntact(entry.blobIds[t], entry.lengths[t])) {
+                    discardValues(entry);
+                    i.remove();
+                    break;
+                }
+            }
+        }
+        blobStore.deleteUnreferenced();
+    }
+
+    /**
+     * Deletes the values of an entry found to be broken while opening the
+     * cache. The caller removes the entry.
+     */
+    private void discardValues(Entry entry) {
+        size -= entry.totalLength();
+        for (int t = 0; t < valueCount; t++) {
+            if (entry.packIds[t] != BinaryJournal.NOT_PACKED) {
+                packStore.release(entry.packIds[t], entry.lengths[t]);
+            } else if (entry.blobIds[t] == null) {
+                entry.getCleanFile(t).delete();
+            }
+        }
+        releaseBlobs(entry);
+    }
+
+    /**
+     * Drops the blob references of an entry while opening the cache. The
+     * blob files are kept; processBlobs() deletes the unreferenced ones.
      */
-    private void processJournal() throws IOException {
-        deleteIfExists(journalFileTmp);
-        for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
-            Entry entry = i.next();
-            if (entry.currentEditor == null) {
-                for (int t = 0; t < valueCount; t++) {
-                    size += entry.lengths[t];
-                }
-            } else {
-                entry.currentEditor = null;
-                for (int t = 0; t < valueCount; t++) {
-                    deleteIfExists(entry.getCleanFile(t));
-                    deleteIfExists(entry.getDirtyFile(t));
-                }
-                i.remove();
+    private void releaseBlobs(Entry entry) {
+        for (int t = 0; t < valueCount; t++) {
+            if (entry.blobIds[t] != null) {
+                size -= blobStore.release(entry.blobIds[t], false);
+                entry.blobIds[t] = null;
             }
         }
     }
@@ -428,28 +1315,103 @@ public final class DiskLruCache implements Closeable {
             journalWriter.close();
         }
 
-        Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
-        writer.write(MAGIC);
-        writer.write("\n");
-        writer.write(VERSION_1);
-        writer.write("\n");
-        writer.write(Integer.toString(appVersion));
-        writer.write("\n");
-        writer.write(Integer.toString(valueCount));
-        writer.write("\n");
-        writer.write("\n");
+        OutputStream writer = newFileWriter(journalFileTmp, false);
+        BinaryJournal.writeHeader(writer, appVersion, valueCount);
 
         for (Entry entry : lruEntries.values()) {
             if (entry.currentEditor != null) {
-                writer.write(DIRTY + ' ' + entry.key + '\n');
+                BinaryJournal.writeRecord(writer, BinaryJournal.OP_DIRTY, entry.key);
             } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+                writeCleanRecord(writer, entry);
             }
         }
 
         writer.close();
+        deleteIfExists(checkpointFile);
         journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+        journalGeneration++;
+        journalWriter = newJournalWriter();
+        writeCheckpoint(journalFile.length());
+    }
+
+    /**
+     * Rewrites the journal like rebuildJournal() without holding the monitor
+     * while writing. The entries are encoded under the monitor, written to
+     * "journal.bin.tmp" outside it, and the records appended in the meantime
+     * are added before the new journal replaces the old one under the
+     * monitor. The old journal gets every record too, so a crash at any
+     * point leaves a complete journal.
+     */
+    private void compactJournal() throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        BinaryJournal.writeHeader(header, appVersion, valueCount);
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        Checkpoint checkpoint;
+        int compactedOps;
+        synchronized (this) {
+            if (journalWriter == null) {
+                return;
+            }
+            for (Entry entry : lruEntries.values()) {
+                if (entry.currentEditor != null) {
+                    BinaryJournal.writeRecord(records, BinaryJournal.OP_DIRTY, entry.key);
+                } else {
+                    writeCleanRecord(records, entry);
+                }
+            }
+            // the new journal holds exactly these entries until the captured records start
+            checkpoint = snapshotCheckpoint(header.size() + records.size());
+            compactedOps = redundantOpCount;
+            compactionCapture = new ByteArrayOutputStream();
+        }
+
+        OutputStream writer = null;
+        boolean checkpointWritten = false;
+        try {
+            writer = newFileWriter(journalFileTmp, false);
+            header.writeTo(writer);
+            records.writeTo(writer);
+            checkpointWritten = writeCheckpointFile(checkpoint, backgroundCheckpointFileTmp);
+            synchronized (this) {
+                if (journalWriter == null) {
+                    return; // closed meanwhile
+                }
+                compactionCapture.writeTo(writer);
+                compactionCapture = null;
+                writer.close();
+                writer = null;
+
+                journalWriter.close();
+                deleteIfExists(checkpointFile);
+                boolean renamed = journalFileTmp.renameTo(journalFile);
+                journalGeneration++;
+                journalWriter = newJournalWriter();
+                if (!renamed) {
+                    throw new IOException("failed to rename " + journalFileTmp);
+                }
+                redundantOpCount = Math.max(0, redundantOpCount - compactedOps);
+                if (checkpointWritten) {
+                    installCheckpoint(backgroundCheckpointFileTmp);
+                    checkpointWritten = false;
+                }
+            }
+        } finally {
+            if (writer != null) {
+                closeQuietly(writer);
+                journalFileTmp.delete();
+            }
+            if (checkpointWritten) {
+                backgroundCheckpointFileTmp.delete();
+            }
+            synchronized (this) {
+                compactionCapture = null;
+            }
+        }
+    }
+
+    private static void writeCleanRecord(OutputStream out, Entry entry) throws IOException {
+        BinaryJournal.writeCleanRecord(out, entry.key, entry.lengths, entry.packIds, entry.offsets,
+                entry.blobIds);
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -468,11 +1430,57 @@ public final class DiskLruCache implements Closeable {
     /**
      * Returns a snapshot of the entry named {@code key}, or null if it doesn't
      * exist is not currently readable. If a value is returned, it is moved to
-     * the head of the LRU queue.
+     * the head of the LRU queue, or marked referenced in clock mode.
+     */
+    @Override
+    public Snapshot get(String key) throws IOException {
+        if (!indexed) {
+            if (options.packed || options.dedup) {
+                // a miss here would make the caller fetch the value again
+                awaitIndex();
+            } else {
+                validateKey(key);
+                return getUnindexed(key);
+            }
+        }
+        return getIndexed(key);
+    }
+
+    /**
+     * Serves a read before the index is loaded by opening the value files
+     * directly. A key is found only if all of its values are in their own
+     * files and no commit of it was cut short, since a commit renames its
+     * dirty files one at a time. The snapshot can't be edited.
      */
-    public synchronized Snapshot get(String key) throws IOException {
+    private Snapshot getUnindexed(String key) {
+        for (int i = 0; i < valueCount; i++) {
+            if (new File(directory, key + "." + i + ".tmp").exists()) {
+                return null;
+            }
+        }
+        InputStream[] ins = new InputStream[valueCount];
+        long[] lengths = new long[valueCount];
+        try {
+            for (int i = 0; i < valueCount; i++) {
+                File file = new File(directory, key + "." + i);
+                lengths[i] = file.length();
+                ins[i] = new FileInputStream(file);
+            }
+        } catch (FileNotFoundException e) {
+            for (InputStream in : ins) {
+                closeQuietly(in);
+            }
+            return null;
+        }
+        return new Snapshot(key, UNINDEXED_SEQUENCE_NUMBER, ins, lengths, new long[valueCount]);
+    }
+
+    private synchronized Snapshot getIndexed(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
+        if (admissionSketch != null) {
+            admissionSketch.increment(key);
+        }
         Entry entry = lruEntries.get(key);
         if (entry == null) {
             return null;
@@ -490,31 +1498,59 @@ public final class DiskLruCache implements Closeable {
         InputStream[] ins = new InputStream[valueCount];
         try {
             for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
+                ins[i] = openValue(entry, i);
             }
-        } catch (FileNotFoundException e) {
+        } catch (IOException e) {
             // a file must have been deleted manually!
+            for (InputStream in : ins) {
+                closeQuietly(in);
+            }
             return null;
         }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+        if (options.clock) {
+            entry.referenced = true;
+            if (++accessesSinceCheckpoint == CHECKPOINT_ACCESS_THRESHOLD) {
+                executorService.submit(cleanupCallable);
+            }
+        } else {
+            redundantOpCount++;
+            journalRecord(BinaryJournal.OP_READ, key);
+            if (journalRebuildRequired()) {
+                executorService.submit(cleanupCallable);
+            }
         }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+        return new Snapshot(key, entry.sequenceNumber, ins, entry.lengths.clone(),
+                entry.offsets.clone());
+    }
+
+    private InputStream openValue(Entry entry, int index) throws IOException {
+        if (entry.packIds[index] != BinaryJournal.NOT_PACKED) {
+            return packStore.open(entry.packIds[index], entry.offsets[index], entry.lengths[index]);
+        }
+        if (entry.blobIds[index] != null) {
+            return new FileInputStream(blobStore.getFile(entry.blobIds[index]));
+        }
+        return new FileInputStream(entry.getCleanFile(index));
     }
 
     /**
      * Returns an editor for the entry named {@code key}, or null if another
      * edit is in progress.
      */
+    @Override
     public Editor edit(String key) throws IOException {
         return edit(key, ANY_SEQUENCE_NUMBER);
     }
 
-    private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
+    private Editor edit(String key, long expectedSequenceNumber) throws IOException {
+        awaitIndex();
+        return editIndexed(key, expectedSequenceNumber);
+    }
+
+    private synchronized Editor editIndexed(String key, long expectedSequenceNumber)
+            throws IOException {
         checkNotClosed();
         validateKey(key);
         Entry entry = lruEntries.get(key);
@@ -533,7 +1569,7 @@ public final class DiskLruCache implements Closeable {
         entry.currentEditor = editor;
 
         // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
+        journalRecord(BinaryJournal.OP_DIRTY, key);
         journalWriter.flush();
         return editor;
     }
@@ -541,6 +1577,7 @@ public final class DiskLruCache implements Closeable {
     /**
      * Returns the directory where this cache stores its data.
      */
+    @Override
     public File getDirectory() {
         return directory;
     }
@@ -549,17 +1586,102 @@ public final class DiskLruCache implements Closeable {
      * Returns the maximum number of bytes that this cache should use to store
      * its data.
      */
+    @Override
     public long maxSize() {
         return maxSize;
     }
 
+    /**
+     * Returns the number of times the journal has been flushed to the file
+     * since this cache was opened.
+     */
+    public long journalFlushCount() {
+        return journalStats.flushes.get();
+    }
+
+    /**
+     * Returns the number of journal bytes written to the file since this
+     * cache was opened, not counting journal rebuilds.
+     */
+    public long journalBytesWritten() {
+        return journalStats.bytesWritten.get();
+    }
+
+    /**
+     * Returns the number of journal records appended since this cache was
+     * opened, not counting journal rebuilds.
+     */
+    public long journalRecordCount() {
+        return journalStats.records.get();
+    }
+
+    /**
+     * Returns the number of entries evicted to stay within the size limit
+     * since this cache was opened.
+     */
+    public synchronized long evictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Returns the number of bytes freed by evictions since this cache was
+     * opened.
+     */
+    public synchronized long evictedBytes() {
+        return evictedBytes;
+    }
+
+    /**
+     * Returns how long the most recent background trim took from the commit
+     * that crossed the high watermark until the size reached the low
+     * watermark, or 0 if no trim has finished yet.
+     */
+    public synchronized long lastTrimLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastTrimLagNanos);
+    }
+
+    /**
+     * Returns the longest trim lag since this cache was opened.
+     *
+     * @see #lastTrimLagMillis()
+     */
+    public synchronized long maxTrimLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxTrimLagNanos);
+    }
+
+    /**
+     * Returns the number of new entries the admission policy has turned away
+     * since this cache was opened.
+     */
+    public synchronized long rejectedAdmissionCount() {
+        return rejectedAdmissions;
+    }
+
+    /**
+     * Returns the bytes saved by storing identical values once.
+     */
+    public synchronized long dedupSavedBytes() {
+        return blobStore.sharedBytes();
+    }
+
+    /**
+     * Returns the number of distinct deduplicated values.
+     */
+    public synchronized int blobCount() {
+        return blobStore.blobCount();
+    }
+
     /**
      * Returns the number of bytes currently being used to store the values in
      * this cache. This may be greater than the max size if a background
      * deletion is pending.
      */
-    public synchronized long size() {
-        return size;
+    @Override
+    public long size() {
+        awaitIndex();
+        synchronized (this) {
+            return size;
+        }
     }
 
     private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
@@ -571,23 +1693,52 @@ public final class DiskLruCache implements Closeable {
         // if this edit is creating the entry for the first time, every index must have a value
         if (success && !entry.readable) {
             for (int i = 0; i < valueCount; i++) {
-                if (!entry.getDirtyFile(i).exists()) {
+                if (!editor.hasValue(i)) {
                     editor.abort();
                     throw new IllegalStateException("edit didn't create file " + i);
                 }
             }
+            if (admissionSketch != null && !admit(editor)) {
+                rejectedAdmissions++;
+                success = false;
+            }
         }
 
         for (int i = 0; i < valueCount; i++) {
+            if (editor.buffers != null) {
+                ByteArrayOutputStream buffer = editor.buffers[i];
+                editor.buffers[i] = null;
+                if (success && buffer != null) {
+                    long offset = packStore.append(buffer);
+                    long oldLength = entry.ownLength(i);
+                    releaseShared(entry, i);
+                    entry.packIds[i] = packStore.activePackId();
+                    entry.offsets[i] = offset;
+                    entry.lengths[i] = buffer.size();
+                    size = size - oldLength + buffer.size();
+                }
+                continue;
+            }
             File dirty = entry.getDirtyFile(i);
             if (success) {
                 if (dirty.exists()) {
                     File clean = entry.getCleanFile(i);
-                    dirty.renameTo(clean);
-                    long oldLength = entry.lengths[i];
-                    long newLength = clean.length();
+                    long oldLength = entry.ownLength(i);
+                    long newLength = dirty.length();
+                    if (editor.fingerprints != null && editor.fingerprints[i] != null) {
+                        String blobId = editor.fingerprints[i].id();
+                        editor.fingerprints[i] = null;
+                        // take the new reference first so rewriting the same bytes keeps the file
+                        size += blobStore.store(blobId, dirty, newLength);
+                        releaseShared(entry, i);
+                        deleteIfExists(clean);
+                        entry.blobIds[i] = blobId;
+                    } else {
+                        dirty.renameTo(clean);
+                        releaseShared(entry, i);
+                    }
                     entry.lengths[i] = newLength;
-                    size = size - oldLength + newLength;
+                    size = size - oldLength + (entry.blobIds[i] != null ? 0 : newLength);
                 }
             } else {
                 deleteIfExists(dirty);
@@ -598,20 +1749,142 @@ public final class DiskLruCache implements Closeable {
         entry.currentEditor = null;
         if (entry.readable | success) {
             entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+            journalCleanRecord(entry);
             if (success) {
                 entry.sequenceNumber = nextSequenceNumber++;
             }
         } else {
             lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+            journalRecord(BinaryJournal.OP_REMOVE, entry.key);
         }
 
-        if (size > maxSize || journalRebuildRequired()) {
+        if (size > highWatermark && trimStartNanos == 0) {
+            trimStartNanos = System.nanoTime();
+        }
+        if (trimStartNanos != 0 || journalRebuildRequired() || packStore.compactionRequired()) {
             executorService.submit(cleanupCallable);
         }
     }
 
+    /**
+     * Returns true if the new entry of {@code editor} fits below the low
+     * watermark, so it won't cause an eviction, or is at least as popular as
+     * the entry trimToSize() would evict first.
+     */
+    private boolean admit(Editor editor) {
+        Entry candidate = editor.entry;
+        long newSize = size;
+        for (int i = 0; i < valueCount; i++) {
+            newSize += editor.buffers != null
+                    ? editor.buffers[i].size() : candidate.getDirtyFile(i).length();
+        }
+        if (newSize <= lowWatermark) {
+            return true;
+        }
+        Entry victim = admissionVictim(candidate);
+        return victim == null
+                || admissionSketch.frequency(candidate.key)
+                        >= admissionSketch.frequency(victim.key);
+    }
+
+    /**
+     * Returns the entry trimToSize() would evict first: the eldest one, or in
+     * clock mode the eldest unreferenced one.
+     */
+    private Entry admissionVictim(Entry candidate) {
+        Entry eldest = null;
+        for (Entry entry : lruEntries.values()) {
+            if (entry == candidate || entry.currentEditor != null) {
+                continue;
+            }
+            if (!options.clock || !entry.referenced) {
+                return entry;
+            }
+            if (eldest == null) {
+                eldest = entry;
+            }
+        }
+        return eldest;
+    }
+
+    /**
+     * Marks the pack bytes of value {@code index} dead if it is packed, or
+     * drops its reference to a blob if it is deduplicated. The entry's own
+     * length isn't subtracted from the size.
+     */
+    private void releaseShared(Entry entry, int index) {
+        if (entry.packIds[index] != BinaryJournal.NOT_PACKED) {
+            packStore.release(entry.packIds[index], entry.lengths[index]);
+            entry.packIds[index] = BinaryJournal.NOT_PACKED;
+            entry.offsets[index] = 0;
+        } else if (entry.blobIds[index] != null) {
+            size -= blobStore.release(entry.blobIds[index], true);
+            entry.blobIds[index] = null;
+        }
+    }
+
+    /**
+     * Copies the live values out of pack files that are mostly dead, so that
+     * those packs can be deleted. Each entry is moved under the monitor on
+     * its own, so other operations interleave with a long compaction. Moved
+     * entries get a new CLEAN record, which makes them look recently used
+     * when the journal is replayed.
+     */
+    private void compactPacks() throws IOException {
+        List<Integer> candidates;
+        List<Entry> toMove = new ArrayList<Entry>();
+        synchronized (this) {
+            if (journalWriter == null) {
+                return;
+            }
+            candidates = packStore.compactionCandidates();
+            if (candidates.isEmpty()) {
+                return;
+            }
+            for (Entry entry : lruEntries.values()) {
+                for (int i = 0; i < valueCount; i++) {
+                    if (candidates.contains(entry.packIds[i])) {
+                        toMove.add(entry);
+                        break;
+                    }
+                }
+            }
+        }
+
+        for (Entry entry : toMove) {
+            synchronized (this) {
+                if (journalWriter == null) {
+                    return;
+                }
+                boolean moved = false;
+                for (int i = 0; i < valueCount; i++) {
+                    // removed entries have already released their packs
+                    int packId = entry.packIds[i];
+                    if (!candidates.contains(packId)) {
+                        continue;
+                    }
+                    byte[] data = packStore.read(packId, entry.offsets[i], entry.lengths[i]);
+                    long offset = packStore.append(data);
+                    packStore.release(packId, entry.lengths[i]);
+                    entry.packIds[i] = packStore.activePackId();
+                    entry.offsets[i] = offset;
+                    moved = true;
+                }
+                if (moved) {
+                    redundantOpCount++;
+                    journalCleanRecord(entry);
+                }
+            }
+        }
+        synchronized (this) {
+            if (journalWriter != null) {
+                // candidates whose entries were all removed before the move
+                packStore.deleteUnused();
+                journalWriter.flush();
+            }
+        }
+    }
+
     /**
      * We only rebuild the journal when it will halve the size of the journal
      * and eliminate at least 2000 ops.
@@ -622,13 +1895,27 @@ public final class DiskLruCache implements Closeable {
                 && redundantOpCount >= lruEntries.size();
     }
 
+    /**
+     * In clock mode the access order only reaches the disk through the
+     * checkpoint, so it's rewritten after enough reads.
+     */
+    private boolean checkpointRequired() {
+        return options.clock && accessesSinceCheckpoint >= CHECKPOINT_ACCESS_THRESHOLD;
+    }
+
     /**
      * Drops the entry for {@code key} if it exists and can be removed. Entries
      * actively being edited cannot be removed.
      *
      * @return true if an entry was removed.
      */
-    public synchronized boolean remove(String key) throws IOException {
+    @Override
+    public boolean remove(String key) throws IOException {
+        awaitIndex();
+        return removeIndexed(key);
+    }
+
+    private synchronized boolean removeIndexed(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
         Entry entry = lruEntries.get(key);
@@ -637,16 +1924,19 @@ public final class DiskLruCache implements Closeable {
         }
 
         for (int i = 0; i < valueCount; i++) {
-            File file = entry.getCleanFile(i);
-            if (!file.delete()) {
-                throw new IOException("failed to delete " + file);
+            if (entry.packIds[i] == BinaryJournal.NOT_PACKED && entry.blobIds[i] == null) {
+                File file = entry.getCleanFile(i);
+                if (!file.delete()) {
+                    throw new IOException("failed to delete " + file);
+                }
             }
-            size -= entry.lengths[i];
+            size -= entry.ownLength(i);
+            releaseShared(entry, i);
             entry.lengths[i] = 0;
         }
 
         redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
+        journalRecord(BinaryJournal.OP_REMOVE, key);
         lruEntries.remove(key);
 
         if (journalRebuildRequired()) {
@@ -659,8 +1949,9 @@ public final class DiskLruCache implements Closeable {
     /**
      * Returns true if this cache has been closed.
      */
+    @Override
     public boolean isClosed() {
-        return journalWriter == null;
+        return indexed && journalWriter == null;
     }
 
     private void checkNotClosed() {
@@ -670,18 +1961,28 @@ public final class DiskLruCache implements Closeable {
     }
 
     /**
-     * Force buffered operations to the filesystem.
+     * Force buffered operations to the filesystem. With group commit the
+     * journal records are left to the next batch.
      */
-    public synchronized void flush() throws IOException {
-        checkNotClosed();
-        trimToSize();
-        journalWriter.flush();
+    @Override
+    public void flush() throws IOException {
+        awaitIndex();
+        synchronized (this) {
+            checkNotClosed();
+            journalWriter.flush();
+        }
     }
 
     /**
      * Closes this cache. Stored values will remain on the filesystem.
      */
-    public synchronized void close() throws IOException {
+    @Override
+    public void close() throws IOException {
+        awaitIndex();
+        closeIndexed();
+    }
+
+    private synchronized void closeIndexed() throws IOException {
         if (journalWriter == null) {
             return; // already closed
         }
@@ -690,17 +1991,99 @@ public final class DiskLruCache implements Closeable {
                 entry.currentEditor.abort();
             }
         }
-        trimToSize();
+        trimToSize(maxSize, Integer.MAX_VALUE);
+        packStore.close();
         journalWriter.close();
         journalWriter = null;
+        writeCheckpoint(journalFile.length());
+    }
+
+    /**
+     * Evicts down to the low watermark once the size has crossed the high
+     * watermark. Runs on the executor and releases the monitor after every
+     * batch of Options.trimBatchSize evictions, so writers and readers are
+     * only held up for one batch at a time.
+     */
+    private void trimInBatches() throws IOException {
+        while (true) {
+            synchronized (this) {
+                if (journalWriter == null || trimStartNanos == 0) {
+                    return;
+                }
+                int evicted = trimToSize(lowWatermark, options.trimBatchSize);
+                if (size <= lowWatermark) {
+                    lastTrimLagNanos = System.nanoTime() - trimStartNanos;
+                    maxTrimLagNanos = Math.max(maxTrimLagNanos, lastTrimLagNanos);
+                    trimStartNanos = 0;
+                    return;
+                }
+                if (evicted == 0) {
+                    // everything left is being edited; the next commit retries
+                    return;
+                }
+            }
+            Thread.yield();
+        }
     }
 
-    private void trimToSize() throws IOException {
-        while (size > maxSize) {
+    /**
+     * Evicts entries until the size is at most {@code target} or
+     * {@code maxEvictions} entries are gone. Entries being edited are
+     * skipped. Returns the number of evicted entries.
+     */
+    private int trimToSize(long target, int maxEvictions) throws IOException {
+        if (options.clock) {
+            return trimToSizeClock(target, maxEvictions);
+        }
+        int evicted = 0;
+        while (size > target && evicted < maxEvictions) {
 //            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
-            final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+            Entry toEvict = null;
+            for (Entry entry : lruEntries.values()) {
+                if (entry.currentEditor == null) {
+                    toEvict = entry;
+                    break;
+                }
+            }
+            if (toEvict == null) {
+                break;
+            }
+            evict(toEvict);
+            evicted++;
+        }
+        return evicted;
+    }
+
+    private void evict(Entry entry) throws IOException {
+        long sizeBefore = size;
+        if (remove(entry.key)) {
+            evictionCount++;
+            evictedBytes += sizeBefore - size;
+        }
+    }
+
+    /**
+     * Second chance eviction. The eldest entry is under the clock hand; a
+     * referenced entry loses its bit and moves to the back, which advances
+     * the hand without touching the journal. Entries being edited are
+     * skipped the same way. The sweep gives up after two turns so that a
+     * cache full of open editors can't spin.
+     */
+    private int trimToSizeClock(long target, int maxEvictions) throws IOException {
+        int evicted = 0;
+        int steps = lruEntries.size() * 2;
+        while (size > target && evicted < maxEvictions && steps-- > 0) {
+            Entry entry = lruEntries.values().iterator().next();
+            if (entry.referenced || entry.currentEditor != null) {
+                entry.referenced = false;
+                lruEntries.remove(entry.key);
+                lruEntries.put(entry.key, entry);
+            } else {
+                evict(entry);
+                evicted++;
+            }
         }
+        return evicted;
     }
 
     /**
@@ -708,6 +2091,7 @@ public final class DiskLruCache implements Closeable {
      * all files in the cache directory including files that weren't created by
      * the cache.
      */
+    @Override
     public void delete() throws IOException {
         close();
         deleteContents(directory);
@@ -718,6 +2102,10 @@ public final class DiskLruCache implements Closeable {
             throw new IllegalArgumentException(
                     "keys must not contain spaces or newlines: \"" + key + "\"");
         }
+        if (key.length() == 0 || key.length() > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException(
+                    "keys must be 1 to " + MAX_KEY_LENGTH + " characters long: \"" + key + "\"");
+        }
     }
 
     private static String inputStreamToString(InputStream in) throws IOException {
@@ -731,11 +2119,16 @@ public final class DiskLruCache implements Closeable {
         private final String key;
         private final long sequenceNumber;
         private final InputStream[] ins;
+        private final long[] lengths;
+        private final long[] offsets;
 
-        private Snapshot(String key, long sequenceNumber, InputStream[] ins) {
+        private Snapshot(String key, long sequenceNumber, InputStream[] ins, long[] lengths,
+                long[] offsets) {
             this.key = key;
             this.sequenceNumber = sequenceNumber;
             this.ins = ins;
+            this.lengths = lengths;
+            this.offsets = offsets;
         }
 
         /**
@@ -761,6 +2154,42 @@ public final class DiskLruCache implements Closeable {
             return inputStreamToString(getInputStream(index));
         }
 
+        /**
+         * Returns the length in bytes of the value for {@code index}.
+         */
+        public long getLength(int index) {
+            return lengths[index];
+        }
+
+        /**
+         * Returns the position of the value for {@code index} in the file of
+         * {@link #getChannel}. This is 0 unless the value is stored in a pack
+         * file.
+         */
+        public long getOffset(int index) {
+            return offsets[index];
+        }
+
+        /**
+         * Returns the channel of the file holding the value for
+         * {@code index}. The value spans {@link #getLength} bytes from
+         * {@link #getOffset}; the channel is positioned there until the
+         * stream of the same value is read. It is closed with this snapshot.
+         */
+        public FileChannel getChannel(int index) {
+            return ((FileInputStream) ins[index]).getChannel();
+        }
+
+        /**
+         * Maps the value for {@code index} into memory read-only. The mapping
+         * stays valid after this snapshot is closed and after the entry is
+         * evicted.
+         */
+        public MappedByteBuffer map(int index) throws IOException {
+            return getChannel(index).map(FileChannel.MapMode.READ_ONLY, offsets[index],
+                    lengths[index]);
+        }
+
         @Override public void close() {
             for (InputStream in : ins) {
                 closeQuietly(in);
@@ -775,8 +2204,21 @@ public final class DiskLruCache implements Closeable {
         private final Entry entry;
         private boolean hasErrors;
 
+        /** The values written by this edit when the cache is packed. */
+        private final ByteArrayOutputStream[] buffers;
+
+        /** The fingerprints of the values written by this edit when deduplicating. */
+        private final BlobStore.FingerprintOutputStream[] fingerprints;
+
         private Editor(Entry entry) {
             this.entry = entry;
+            this.buffers = options.packed ? new ByteArrayOutputStream[valueCount] : null;
+            this.fingerprints = !options.packed && options.dedup
+                    ? new BlobStore.FingerprintOutputStream[valueCount] : null;
+        }
+
+        private boolean hasValue(int index) {
+            return buffers != null ? buffers[index] != null : entry.getDirtyFile(index).exists();
         }
 
         /**
@@ -791,7 +2233,7 @@ public final class DiskLruCache implements Closeable {
                 if (!entry.readable) {
                     return null;
                 }
-                return new FileInputStream(entry.getCleanFile(index));
+                return openValue(entry, index);
             }
         }
 
@@ -816,7 +2258,43 @@ public final class DiskLruCache implements Closeable {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
                 }
-                return new FaultHidingOutputStream(new FileOutputStream(entry.getDirtyFile(index)));
+                if (buffers != null) {
+                    buffers[index] = new ByteArrayOutputStream();
+                    return new FaultHidingOutputStream(buffers[index]);
+                }
+                OutputStream out = new FileOutputStream(entry.getDirtyFile(index));
+                if (fingerprints != null) {
+                    fingerprints[index] = new BlobStore.FingerprintOutputStream(out);
+                    out = fingerprints[index];
+                }
+                return new FaultHidingOutputStream(out);
+            }
+        }
+
+        /**
+         * Maps the value written to {@code index} by this edit into memory
+         * read-only, so that it can be used before {@link #commit} decides
+         * whether to keep it. The mapping stays valid after the edit has
+         * completed, even if the value was discarded. Packed values are
+         * copied instead.
+         */
+        public ByteBuffer map(int index) throws IOException {
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                if (buffers != null) {
+                    if (buffers[index] == null) {
+                        throw new IllegalStateException("no value written for " + index);
+                    }
+                    return ByteBuffer.wrap(buffers[index].toByteArray());
+                }
+            }
+            RandomAccessFile file = new RandomAccessFile(entry.getDirtyFile(index), "r");
+            try {
+                return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            } finally {
+                file.close();
             }
         }
 
@@ -893,12 +2371,36 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    /** The contents of a checkpoint file, encoded under the monitor. */
+    private static final class Checkpoint {
+        final long journalOffset;
+        final long size;
+        final int recordCount;
+        final ByteArrayOutputStream records;
+
+        Checkpoint(long journalOffset, long size, int recordCount, ByteArrayOutputStream records) {
+            this.journalOffset = journalOffset;
+            this.size = size;
+            this.recordCount = recordCount;
+            this.records = records;
+        }
+    }
+
     private final class Entry {
         private final String key;
 
         /** Lengths of this entry's files. */
         private final long[] lengths;
 
+        /** Pack file of each value, or NOT_PACKED for a value in its own file. */
+        private final int[] packIds;
+
+        /** Offset of each packed value in its pack file. */
+        private final long[] offsets;
+
+        /** Blob of each deduplicated value, or null. */
+        private final String[] blobIds;
+
         /** True if this entry has ever been published */
         private boolean readable;
 
@@ -908,9 +2410,32 @@ public final class DiskLruCache implements Closeable {
         /** The sequence number of the most recently committed edit to this entry. */
         private long sequenceNumber;
 
+        /** Clock mode: read since the clock hand last passed this entry. */
+        private boolean referenced;
+
         private Entry(String key) {
             this.key = key;
             this.lengths = new long[valueCount];
+            this.packIds = new int[valueCount];
+            this.offsets = new long[valueCount];
+            this.blobIds = new String[valueCount];
+            Arrays.fill(packIds, BinaryJournal.NOT_PACKED);
+        }
+
+        /**
+         * Returns the bytes this entry alone accounts for; blobs are counted
+         * by the blob store.
+         */
+        private long totalLength() {
+            long total = 0;
+            for (int i = 0; i < valueCount; i++) {
+                total += ownLength(i);
+            }
+            return total;
+        }
+
+        private long ownLength(int i) {
+            return blobIds[i] != null ? 0 : lengths[i];
         }
 
         public String getLengths() throws IOException {
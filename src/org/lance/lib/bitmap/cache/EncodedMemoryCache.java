@@ -0,0 +1,204 @@
+package org.lance.lib.bitmap.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A bounded cache of encoded image bytes, kept off the Java heap in a single
+ * direct {@link ByteBuffer}. It sits between the bitmap cache and the disk
+ * cache: a hit costs one copy instead of a file open, and since compressed
+ * images are several times smaller than their pixels, many more of them fit.
+ *
+ * <p>The arena is written as a ring. Each value is stored contiguously at the
+ * write position, and the oldest values in the way are evicted; space left at
+ * the end of the ring when a value doesn't fit is skipped until the next lap.
+ * To approximate LRU, a value read while it is in the older half of the ring
+ * (about to be overwritten) is written again at the write position.
+ *
+ * <p>{@link #get} returns a heap copy, so a value may be overwritten right
+ * after it has been read. All methods are synchronized; values are expected
+ * to be small enough that copying them under the lock is cheap.
+ *
+ * @author lance
+ */
+public final class EncodedMemoryCache {
+    /** Values larger than this fraction of the arena are not cached. */
+    private static final int MAX_VALUE_FRACTION = 8;
+
+    private final ByteBuffer arena;
+    private final int capacity;
+    /** Where the next value is written. */
+    private int head;
+    /** Values in the order they were written, eldest first. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private long size;
+
+    private long hitCount;
+    private long missCount;
+    private long putCount;
+    private long promotionCount;
+    private long evictionCount;
+
+    /**
+     * @param capacity the size of the arena in bytes.
+     */
+    public EncodedMemoryCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0");
+        }
+        this.capacity = capacity;
+        this.arena = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Returns a copy of the bytes cached for {@code key}, or null.
+     */
+    public synchronized ByteBuffer get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        byte[] copy = new byte[entry.length];
+        ByteBuffer source = arena.duplicate();
+        source.position(entry.offset);
+        source.get(copy);
+        // Distance the write position has to travel to reach the value.
+        int distance = (entry.offset - head + capacity) % capacity;
+        if (distance < capacity / 2) {
+            promotionCount++;
+            write(key, ByteBuffer.wrap(copy));
+        }
+        return ByteBuffer.wrap(copy);
+    }
+
+    /**
+     * Copies the bytes between the position and the limit of {@code value},
+     * without changing its position.
+     *
+     * @return false if the value is too large to be cached.
+     */
+    public synchronized boolean put(String key, ByteBuffer value) {
+        if (value.remaining() > capacity / MAX_VALUE_FRACTION) {
+            remove(key);
+            return false;
+        }
+        putCount++;
+        write(key, value);
+        return true;
+    }
+
+    private void write(String key, ByteBuffer value) {
+        remove(key);
+        int length = value.remaining();
+        if (head + length > capacity) {
+            // Skip the end of the ring. The values there are the eldest.
+            evictFrom(head);
+            head = 0;
+        }
+        evictOverlapping(head, head + length);
+        ByteBuffer target = arena.duplicate();
+        target.position(head);
+        target.put(value.duplicate());
+        entries.put(key, new Entry(head, length));
+        size += length;
+        head += length;
+        if (head == capacity) {
+            head = 0;
+        }
+    }
+
+    /** Evicts the eldest values while they are in [start, end). */
+    private void evictOverlapping(int start, int end) {
+        Iterator<Entry> i = entries.values().iterator();
+        while (i.hasNext()) {
+            Entry eldest = i.next();
+            if (eldest.offset >= end || eldest.offset + eldest.length <= start) {
+                return;
+            }
+            i.remove();
+            size -= eldest.length;
+            evictionCount++;
+        }
+    }
+
+    /** Evicts the eldest values while they start at or after {@code start}. */
+    private void evictFrom(int start) {
+        Iterator<Entry> i = entries.values().iterator();
+        while (i.hasNext()) {
+            Entry eldest = i.next();
+            if (eldest.offset < start) {
+                return;
+            }
+            i.remove();
+            size -= eldest.length;
+            evictionCount++;
+        }
+    }
+
+    public synchronized void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            size -= entry.length;
+        }
+    }
+
+    public synchronized void evictAll() {
+        entries.clear();
+        size = 0;
+        head = 0;
+    }
+
+    /** Returns the number of bytes cached. */
+    public synchronized long size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public synchronized int count() {
+        return entries.size();
+    }
+
+    public synchronized long hitCount() {
+        return hitCount;
+    }
+
+    public synchronized long missCount() {
+        return missCount;
+    }
+
+    public synchronized long putCount() {
+        return putCount;
+    }
+
+    /** Returns the number of values written again because they were read. */
+    public synchronized long promotionCount() {
+        return promotionCount;
+    }
+
+    public synchronized long evictionCount() {
+        return evictionCount;
+    }
+
+    @Override public synchronized String toString() {
+        long accesses = hitCount + missCount;
+        int hitPercent = accesses != 0 ? (int) (100 * hitCount / accesses) : 0;
+        return String.format("EncodedMemoryCache[size=%d/%d,count=%d,hitRate=%d%%,promotions=%d,evictions=%d]",
+                size, capacity, entries.size(), hitPercent, promotionCount, evictionCount);
+    }
+
+    private static final class Entry {
+        final int offset;
+        final int length;
+
+        Entry(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
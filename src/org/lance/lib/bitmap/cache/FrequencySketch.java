@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 Ben Manes. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lance.lib.bitmap.cache;
+
+/**
+ * A count-min sketch of how often keys were requested, used by
+ * {@link DiskLruCache} to decide whether a new entry is worth evicting an
+ * old one for (TinyLFU).
+ *
+ * <p>Each key has four 4-bit counters, so frequencies saturate at 15. The
+ * counters of a key are spread over four longs of the table but share the
+ * same nibble offset group within them. After {@code 10 * width} increments
+ * every counter is halved, so the sketch follows changes in popularity
+ * instead of remembering the whole history.
+ *
+ * <p>This class is not thread safe; {@link DiskLruCache} calls it while
+ * holding its monitor.
+ *
+ * <p>Adapted from {@code com.github.benmanes.caffeine.cache.FrequencySketch}
+ * of the Caffeine library (https://github.com/ben-manes/caffeine): the table
+ * is sized once from the expected entries and keys are strings.
+ *
+ * @author ben.manes@gmail.com (Ben Manes)
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+            0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedEntries the number of entries the cache is expected to
+     *     hold. The table is sized to the next power of two.
+     */
+    FrequencySketch(int expectedEntries) {
+        int width = Integer.highestOneBit(Math.max(16, expectedEntries) - 1) << 1;
+        table = new long[width];
+        tableMask = width - 1;
+        sampleSize = 10 * width;
+    }
+
+    /**
+     * Returns the estimated number of times {@code key} was requested, at
+     * most 15.
+     */
+    int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records a request for {@code key}.
+     */
+    void increment(String key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /** Halves every counter. */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions = (additions - (odd >>> 2)) >>> 1;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    private static int spread(int h) {
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+}
@@ -0,0 +1,126 @@
+package org.lance.lib.bitmap.cache;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The keys of the most recently used bitmaps, saved when the cache is closed
+ * so that they can be preloaded on the next start. The file lives next to
+ * the disk cache directory rather than in it, since that directory belongs
+ * to the disk cache, which deletes the files it doesn't know about.
+ *
+ * <p>Each line holds the width, height, {@code Bitmap.Config} name or "-",
+ * and URL of one key, separated by single spaces. The file is written to a
+ * temporary file which then replaces it, so a crash leaves either the old
+ * keys or the new ones. Lines that can't be parsed are skipped.
+ *
+ * @author lance
+ */
+public final class HotKeyFile {
+    private static final String SUFFIX = ".hot_keys";
+    private static final String NO_CONFIG = "-";
+
+    private final File file;
+
+    /**
+     * @param diskCacheDir the directory of the disk cache the keys belong to.
+     */
+    public HotKeyFile(File diskCacheDir) {
+        File dir = diskCacheDir.getAbsoluteFile();
+        this.file = new File(dir.getParentFile(), dir.getName() + SUFFIX);
+    }
+
+    /** The decoding parameters of one key. */
+    public static final class Record {
+        public final String url;
+        public final int width;
+        public final int height;
+        /** The name of the {@code Bitmap.Config}, or null. */
+        public final String config;
+
+        public Record(String url, int width, int height, String config) {
+            this.url = url;
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Replaces the saved keys with {@code records}, most important first.
+     * URLs that contain a line break can't be stored and are left out.
+     */
+    public void write(List<Record> records) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(temp), DiskLruCache.UTF_8));
+            for (Record record : records) {
+                if (record.url.indexOf('\n') != -1 || record.url.indexOf('\r') != -1) {
+                    continue;
+                }
+                writer.write(record.width + " " + record.height + " "
+                        + (record.config != null ? record.config : NO_CONFIG) + " "
+                        + record.url + "\n");
+            }
+            writer.close();
+            writer = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("failed to rename " + temp);
+            }
+        } finally {
+            if (writer != null) {
+                DiskLruCache.closeQuietly(writer);
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the saved keys in the order they were written, or an empty
+     * list if there are none.
+     */
+    public List<Record> read() throws IOException {
+        List<Record> records = new ArrayList<Record>();
+        if (!file.exists()) {
+            return records;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), DiskLruCache.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ", 4);
+                if (parts.length != 4) {
+                    continue;
+                }
+                try {
+                    records.add(new Record(parts[3], Integer.parseInt(parts[0]),
+                            Integer.parseInt(parts[1]), NO_CONFIG.equals(parts[2]) ? null : parts[2]));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+
+    public void delete() {
+        file.delete();
+    }
+}
@@ -0,0 +1,184 @@
+package org.lance.lib.bitmap.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The stream {@link DiskLruCache} appends journal records to.
+ *
+ * <p>Without group commit, records go straight to the buffered journal file
+ * and {@link #flush} writes them out. With group commit, records are
+ * collected in memory and a shared background thread writes each batch with
+ * a single write and flush, either every {@code intervalMillis} or as soon
+ * as {@code batchRecords} records are pending. {@link #flush} then only
+ * hands the batch over; {@link #sync} and {@link #close} write it
+ * synchronously. Batches are written in order, so after a crash the journal
+ * holds a prefix of the records and at most the last one is torn.
+ *
+ * <p>Callers must call {@link #endRecord} after each record.
+ *
+ * @author lance
+ */
+final class JournalWriter extends OutputStream {
+    /** The single thread that writes the batches of every group committing journal. */
+    private static final ScheduledExecutorService sCommitExecutor =
+            new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DiskLruCache-journal");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /** Counters shared by the successive writers of one cache. */
+    static final class Stats {
+        final AtomicLong records = new AtomicLong();
+        final AtomicLong flushes = new AtomicLong();
+        final AtomicLong bytesWritten = new AtomicLong();
+    }
+
+    private final OutputStream out;
+    private final Stats stats;
+    private final int batchRecords;
+    private final boolean groupCommit;
+
+    /** Serializes writes to {@link #out}. Never acquired while holding {@code this}. */
+    private final Object fileLock = new Object();
+
+    /** Pending records when group committing. Guarded by {@code this}. */
+    private ByteArrayOutputStream batch;
+    private ByteArrayOutputStream spare;
+    private int pendingRecords;
+    private boolean commitQueued;
+    private ScheduledFuture<?> periodicCommit;
+
+    private final Runnable commitTask = new Runnable() {
+        @Override public void run() {
+            try {
+                sync();
+            } catch (IOException e) {
+                // the batch is lost, like a failed write of a buffered journal
+            }
+        }
+    };
+
+    /**
+     * @param intervalMillis the group commit interval, or 0 to write records
+     *     straight to {@code out}
+     * @param batchRecords the pending record count that triggers a commit
+     *     before the interval is over
+     */
+    JournalWriter(OutputStream out, Stats stats, long intervalMillis, int batchRecords) {
+        this.out = out;
+        this.stats = stats;
+        this.batchRecords = Math.max(1, batchRecords);
+        this.groupCommit = intervalMillis > 0;
+        if (groupCommit) {
+            batch = new ByteArrayOutputStream();
+            spare = new ByteArrayOutputStream();
+            periodicCommit = sCommitExecutor.scheduleWithFixedDelay(commitTask,
+                    intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override public void write(int oneByte) throws IOException {
+        if (groupCommit) {
+            synchronized (this) {
+                batch.write(oneByte);
+            }
+        } else {
+            synchronized (fileLock) {
+                out.write(oneByte);
+            }
+            stats.bytesWritten.incrementAndGet();
+        }
+    }
+
+    @Override public void write(byte[] buffer, int offset, int length) throws IOException {
+        if (groupCommit) {
+            synchronized (this) {
+                batch.write(buffer, offset, length);
+            }
+        } else {
+            synchronized (fileLock) {
+                out.write(buffer, offset, length);
+            }
+            stats.bytesWritten.addAndGet(length);
+        }
+    }
+
+    /**
+     * Marks the end of a record.
+     */
+    void endRecord() {
+        stats.records.incrementAndGet();
+        if (groupCommit) {
+            synchronized (this) {
+                if (++pendingRecords >= batchRecords && !commitQueued) {
+                    commitQueued = true;
+                    sCommitExecutor.execute(commitTask);
+                }
+            }
+        }
+    }
+
+    /**
+     * Without group commit, writes buffered records to the file. With group
+     * commit, records are written by the next batch and this does nothing.
+     */
+    @Override public void flush() throws IOException {
+        if (!groupCommit) {
+            sync();
+        }
+    }
+
+    /**
+     * Writes every record appended so far to the file.
+     */
+    void sync() throws IOException {
+        synchronized (fileLock) {
+            if (groupCommit) {
+                ByteArrayOutputStream pending;
+                synchronized (this) {
+                    pending = batch;
+                    batch = spare;
+                    spare = pending;
+                    pendingRecords = 0;
+                    commitQueued = false;
+                }
+                if (pending.size() == 0) {
+                    return;
+                }
+                try {
+                    pending.writeTo(out);
+                    stats.bytesWritten.addAndGet(pending.size());
+                } finally {
+                    // only the commit thread or a caller holding fileLock touches the spare
+                    pending.reset();
+                }
+            }
+            out.flush();
+            stats.flushes.incrementAndGet();
+        }
+    }
+
+    @Override public void close() throws IOException {
+        if (periodicCommit != null) {
+            periodicCommit.cancel(false);
+        }
+        try {
+            sync();
+        } finally {
+            synchronized (fileLock) {
+                out.close();
+            }
+        }
+    }
+}
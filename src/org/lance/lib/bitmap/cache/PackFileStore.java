@@ -0,0 +1,300 @@
+package org.lance.lib.bitmap.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Append-only pack files for {@link DiskLruCache} values. Instead of one file
+ * per value, committed values are appended to the active pack file
+ * {@code pack.N} and addressed by pack id, offset and length. When the active
+ * pack reaches its target size a new one is started.
+ *
+ * <p>Removing a value only marks its bytes dead. Packs whose live bytes fall
+ * below half of their length are compacted by copying the remaining values
+ * into the active pack, after which the old pack is deleted. Readers that
+ * still have the old pack open keep reading it until they close it.
+ *
+ * <p>This class is not thread safe; {@link DiskLruCache} calls it while
+ * holding its monitor.
+ *
+ * @author lance
+ */
+final class PackFileStore {
+    static final String PACK_FILE_PREFIX = "pack.";
+
+    private final File directory;
+    private final long packFileSize;
+    private final TreeMap<Integer, Pack> packs = new TreeMap<Integer, Pack>();
+    private Pack activePack;
+    private OutputStream activeOut;
+    /**
+     * Ids are never reused: a record of a value in a deleted pack that the
+     * journal lost the REMOVE of must not resolve to another value.
+     */
+    private int nextPackId;
+
+    PackFileStore(File directory, long packFileSize) {
+        this.directory = directory;
+        this.packFileSize = packFileSize;
+    }
+
+    private static final class Pack {
+        final int id;
+        final File file;
+        long length;
+        long liveBytes;
+
+        Pack(int id, File file, long length) {
+            this.id = id;
+            this.file = file;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Registers the pack files found in the directory. Must be followed by
+     * {@link #addLive} for every live value and then {@link #deleteUnused}.
+     */
+    void scan() {
+        String[] names = directory.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            if (!name.startsWith(PACK_FILE_PREFIX)) {
+                continue;
+            }
+            try {
+                int id = Integer.parseInt(name.substring(PACK_FILE_PREFIX.length()));
+                File file = new File(directory, name);
+                packs.put(id, new Pack(id, file, file.length()));
+                nextPackId = Math.max(nextPackId, id + 1);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Accounts a live value read from the journal. Returns false if its pack
+     * file is missing or too short to contain it.
+     */
+    boolean addLive(int packId, long offset, long length) {
+        Pack pack = packs.get(packId);
+        if (pack == null || offset + length > pack.length) {
+            return false;
+        }
+        pack.liveBytes += length;
+        return true;
+    }
+
+    /**
+     * Deletes the sealed packs without live values.
+     */
+    void deleteUnused() {
+        for (Iterator<Pack> i = packs.values().iterator(); i.hasNext(); ) {
+            Pack pack = i.next();
+            if (pack.liveBytes <= 0 && pack != activePack) {
+                pack.file.delete();
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Appends {@code value} to the active pack. Returns its offset; the pack
+     * id is available from {@link #activePackId} afterwards.
+     */
+    long append(ByteArrayOutputStream value) throws IOException {
+        prepareAppend();
+        long offset = activePack.length;
+        value.writeTo(activeOut);
+        return completeAppend(offset, value.size());
+    }
+
+    long append(byte[] value) throws IOException {
+        prepareAppend();
+        long offset = activePack.length;
+        activeOut.write(value);
+        return completeAppend(offset, value.length);
+    }
+
+    private void prepareAppend() throws IOException {
+        if (activePack == null || activePack.length >= packFileSize) {
+            startPack();
+        }
+    }
+
+    private long completeAppend(long offset, int length) throws IOException {
+        activeOut.flush();
+        activePack.length += length;
+        activePack.liveBytes += length;
+        return offset;
+    }
+
+    boolean hasPacks() {
+        return !packs.isEmpty();
+    }
+
+    int activePackId() {
+        return activePack.id;
+    }
+
+    private void startPack() throws IOException {
+        closeActive();
+        // release() keeps the active pack even when nothing in it is live
+        if (activePack != null && activePack.liveBytes <= 0) {
+            activePack.file.delete();
+            packs.remove(activePack.id);
+        }
+        int id = nextPackId++;
+        Pack pack = new Pack(id, new File(directory, PACK_FILE_PREFIX + id), 0);
+        activeOut = new FileOutputStream(pack.file);
+        packs.put(id, pack);
+        activePack = pack;
+    }
+
+    /**
+     * Marks a value dead. The pack is deleted once nothing in it is live,
+     * or for the active pack, once it is sealed.
+     */
+    void release(int packId, long length) {
+        Pack pack = packs.get(packId);
+        if (pack == null) {
+            return;
+        }
+        pack.liveBytes -= length;
+        if (pack.liveBytes <= 0 && pack != activePack) {
+            pack.file.delete();
+            packs.remove(packId);
+        }
+    }
+
+    /**
+     * Opens a stream over one value. The stream is a {@link FileInputStream}
+     * positioned at the value, so its descriptor can be handed to decoders.
+     */
+    FileInputStream open(int packId, long offset, long length) throws IOException {
+        Pack pack = packs.get(packId);
+        if (pack == null) {
+            throw new IOException("missing pack " + packId);
+        }
+        return new RegionInputStream(pack.file, offset, length);
+    }
+
+    byte[] read(int packId, long offset, long length) throws IOException {
+        Pack pack = packs.get(packId);
+        if (pack == null) {
+            throw new IOException("missing pack " + packId);
+        }
+        byte[] data = new byte[(int) length];
+        RandomAccessFile file = new RandomAccessFile(pack.file, "r");
+        try {
+            file.seek(offset);
+            file.readFully(data);
+        } finally {
+            file.close();
+        }
+        return data;
+    }
+
+    boolean compactionRequired() {
+        return !compactionCandidates().isEmpty();
+    }
+
+    /**
+     * Returns the ids of the sealed packs that are less than half live.
+     */
+    List<Integer> compactionCandidates() {
+        List<Integer> result = new ArrayList<Integer>();
+        for (Map.Entry<Integer, Pack> entry : packs.entrySet()) {
+            Pack pack = entry.getValue();
+            if (pack != activePack && pack.liveBytes * 2 < pack.length) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    void close() {
+        closeActive();
+        activePack = null;
+    }
+
+    /**
+     * Closes the store and forgets every pack.
+     */
+    void clear() {
+        close();
+        packs.clear();
+    }
+
+    private void closeActive() {
+        DiskLruCache.closeQuietly(activeOut);
+        activeOut = null;
+    }
+
+    /**
+     * A {@link FileInputStream} that starts at {@code offset} and ends after
+     * {@code length} bytes.
+     */
+    private static final class RegionInputStream extends FileInputStream {
+        private long remaining;
+
+        RegionInputStream(File file, long offset, long length) throws IOException {
+            super(file);
+            try {
+                getChannel().position(offset);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            this.remaining = length;
+        }
+
+        @Override public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override public int read(byte[] buffer) throws IOException {
+            return read(buffer, 0, buffer.length);
+        }
+
+        @Override public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int count = super.read(buffer, offset, (int) Math.min(length, remaining));
+            if (count > 0) {
+                remaining -= count;
+            }
+            return count;
+        }
+
+        @Override public long skip(long byteCount) throws IOException {
+            long skipped = super.skip(Math.min(byteCount, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.lance.lib.bitmap.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * A disk cache split into independent {@link DiskLruCache} segments. A key
+ * always maps to the same segment, chosen by its hash. Each segment has its
+ * own subdirectory, journal, lock and an equal share of the size budget, so
+ * operations on keys in different segments never wait on each other and no
+ * single directory has to hold every file.
+ *
+ * <p>The segments live in subdirectories named after the segment count, e.g.
+ * {@code s4_0 .. s4_3}. Anything else found in the directory on open, such
+ * as the files of an unsegmented cache or of a different segment count, is
+ * deleted.
+ *
+ * @author lance
+ */
+public final class SegmentedDiskLruCache implements DiskCache {
+    private static final Logger LOGGER = Logger.getLogger(SegmentedDiskLruCache.class.getName());
+
+    private final File directory;
+    private final long maxSize;
+    private final DiskLruCache[] segments;
+
+    private SegmentedDiskLruCache(File directory, long maxSize, DiskLruCache[] segments) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.segments = segments;
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there. Every file and directory in {@code directory} other than the
+     * segments of this segment count is deleted, so the directory must not
+     * be shared with anything else.
+     *
+     * @param segmentCount the number of segments. Must be positive.
+     * @see DiskLruCache#open(File, int, int, long)
+     */
+    public static SegmentedDiskLruCache open(File directory, int appVersion, int valueCount,
+            long maxSize, int segmentCount) throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, segmentCount,
+                new DiskLruCache.Options());
+    }
+
+    /**
+     * Opens the cache with {@code options} applied to every segment.
+     *
+     * @see #open(File, int, int, long, int)
+     */
+    public static SegmentedDiskLruCache open(File directory, int appVersion, int valueCount,
+            long maxSize, int segmentCount, DiskLruCache.Options options) throws IOException {
+        if (segmentCount <= 0) {
+            throw new IllegalArgumentException("segmentCount <= 0");
+        }
+        if (maxSize < segmentCount) {
+            throw new IllegalArgumentException("maxSize < segmentCount");
+        }
+        directory.mkdirs();
+        deleteForeignFiles(directory, segmentCount);
+
+        DiskLruCache[] segments = new DiskLruCache[segmentCount];
+        long segmentSize = maxSize / segmentCount;
+        try {
+            for (int i = 0; i < segmentCount; i++) {
+                segments[i] = DiskLruCache.open(segmentDirectory(directory, segmentCount, i),
+                        appVersion, valueCount, segmentSize, options);
+            }
+        } catch (IOException e) {
+            for (DiskLruCache segment : segments) {
+                DiskLruCache.closeQuietly(segment);
+            }
+            throw e;
+        }
+        return new SegmentedDiskLruCache(directory, maxSize, segments);
+    }
+
+    private static File segmentDirectory(File directory, int segmentCount, int index) {
+        return new File(directory, "s" + segmentCount + "_" + index);
+    }
+
+    private static void deleteForeignFiles(File directory, int segmentCount) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        String prefix = "s" + segmentCount + "_";
+        for (File file : files) {
+            if (file.isDirectory() && file.getName().startsWith(prefix)) {
+                continue;
+            }
+            LOGGER.warning("deleting " + file + ", which isn't a segment of this cache");
+            if (file.isDirectory()) {
+                DiskLruCache.deleteContents(file);
+            }
+            if (!file.delete()) {
+                throw new IOException("failed to delete file: " + file);
+            }
+        }
+    }
+
+    private DiskLruCache segmentFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    @Override public DiskLruCache.Snapshot get(String key) throws IOException {
+        return segmentFor(key).get(key);
+    }
+
+    @Override public DiskLruCache.Editor edit(String key) throws IOException {
+        return segmentFor(key).edit(key);
+    }
+
+    @Override public boolean remove(String key) throws IOException {
+        return segmentFor(key).remove(key);
+    }
+
+    @Override public File getDirectory() {
+        return directory;
+    }
+
+    @Override public long maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the sum of the segment sizes. Segments are read one after the
+     * other, so the total isn't an atomic snapshot.
+     */
+    @Override public long size() {
+        long size = 0;
+        for (DiskLruCache segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    @Override public void flush() throws IOException {
+        for (DiskLruCache segment : segments) {
+            segment.flush();
+        }
+    }
+
+    /**
+     * Returns true once every segment is closed. A segment that failed to
+     * load its index is closed on its own; the others stay usable until
+     * {@link #close}.
+     */
+    @Override public boolean isClosed() {
+        for (DiskLruCache segment : segments) {
+            if (!segment.isClosed()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override public void close() throws IOException {
+        IOException failure = null;
+        for (DiskLruCache segment : segments) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Closes the cache and deletes everything in its directory.
+     */
+    @Override public void delete() throws IOException {
+        close();
+        DiskLruCache.deleteContents(directory);
+    }
+}
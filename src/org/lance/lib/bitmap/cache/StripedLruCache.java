@@ -0,0 +1,375 @@
+package org.lance.lib.bitmap.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A memory cache with the interface of {@code android.util.LruCache}, but
+ * without its single lock. Reads never lock: {@link #get} is a lookup in a
+ * {@link ConcurrentHashMap} plus a volatile write that marks the entry as
+ * referenced. Writes lock one of several segments, chosen by the key's hash.
+ *
+ * <p>Each segment keeps its entries in insertion order and evicts with the
+ * second chance (clock) policy: a referenced entry loses its bit and goes
+ * to the back instead of being evicted. Segments take turns to evict, so
+ * the order is only approximately LRU across the whole cache. The size is
+ * exact and shared by all segments; {@link #put} evicts until it is at most
+ * {@link #maxSize}.
+ *
+ * <p>{@link #entryRemoved} is called after the segment's lock has been
+ * released, so it may take other locks or do slow work.
+ *
+ * @author lance
+ */
+public class StripedLruCache<K, V> {
+    private final ConcurrentHashMap<K, Node<K, V>> map;
+    private final Segment<K, V>[] segments;
+    private final int segmentMask;
+    private final AtomicLong size = new AtomicLong();
+    private volatile long maxSize;
+    /** The segment that evicts next. */
+    private final AtomicInteger evictionCursor = new AtomicInteger();
+
+    private final AtomicLong putCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *     the maximum number of entries in the cache. For all other caches,
+     *     this is the maximum sum of the sizes of the entries in this cache.
+     * @param concurrency the expected number of threads writing at once.
+     *     The number of segments is the next power of two.
+     */
+    public StripedLruCache(long maxSize, int concurrency) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        int count = Integer.highestOneBit(Math.max(1, concurrency) * 2 - 1);
+        this.maxSize = maxSize;
+        this.map = new ConcurrentHashMap<K, Node<K, V>>(16, 0.75f, count);
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Segment<K, V>[] segments = new Segment[count];
+        this.segments = segments;
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<K, V>();
+        }
+        this.segmentMask = count - 1;
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache. Never
+     * blocks.
+     */
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        Segment<K, V> segment = segmentFor(key);
+        Node<K, V> node = map.get(key);
+        if (node == null) {
+            segment.missCount.incrementAndGet();
+            return null;
+        }
+        if (!node.referenced) {
+            node.referenced = true;
+        }
+        segment.hitCount.incrementAndGet();
+        return node.value;
+    }
+
+    /**
+     * Caches {@code value} for {@code key}, then evicts entries until the
+     * cache fits in {@link #maxSize} again.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        Node<K, V> node = new Node<K, V>(key, value, safeSizeOf(key, value));
+        Segment<K, V> segment = segmentFor(key);
+        Node<K, V> previous;
+        synchronized (segment) {
+            previous = map.put(key, node);
+            if (previous != null) {
+                segment.unlink(previous);
+                size.addAndGet(-previous.size);
+            }
+            segment.linkLast(node);
+            size.addAndGet(node.size);
+        }
+        putCount.incrementAndGet();
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, value);
+        }
+        trimToSize(maxSize);
+        return previous != null ? previous.value : null;
+    }
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        Segment<K, V> segment = segmentFor(key);
+        Node<K, V> previous;
+        synchronized (segment) {
+            previous = map.remove(key);
+            if (previous != null) {
+                segment.unlink(previous);
+                size.addAndGet(-previous.size);
+            }
+        }
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, null);
+            return previous.value;
+        }
+        return null;
+    }
+
+    /**
+     * Evicts entries, one segment after the other, until the size is at
+     * most {@code maxSize}. Pass -1 to evict everything.
+     */
+    public void trimToSize(long maxSize) {
+        int emptySegments = 0;
+        while (size.get() > maxSize && emptySegments <= segmentMask) {
+            Segment<K, V> segment = segments[evictionCursor.getAndIncrement() & segmentMask];
+            Node<K, V> victim;
+            synchronized (segment) {
+                victim = segment.evict();
+                if (victim != null) {
+                    map.remove(victim.key, victim);
+                    size.addAndGet(-victim.size);
+                }
+            }
+            if (victim == null) {
+                emptySegments++;
+                continue;
+            }
+            emptySegments = 0;
+            evictionCount.incrementAndGet();
+            entryRemoved(true, victim.key, victim.value, null);
+        }
+    }
+
+    /**
+     * Changes the maximum size and evicts entries if the cache is larger.
+     */
+    public void resize(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Clears the cache, calling {@link #entryRemoved} on each removed entry.
+     */
+    public final void evictAll() {
+        for (Segment<K, V> segment : segments) {
+            List<Node<K, V>> removed = new ArrayList<Node<K, V>>();
+            synchronized (segment) {
+                for (Node<K, V> node = segment.head.next; node != segment.head; node = node.next) {
+                    removed.add(node);
+                    map.remove(node.key, node);
+                    size.addAndGet(-node.size);
+                }
+                segment.clear();
+            }
+            evictionCount.addAndGet(removed.size());
+            for (Node<K, V> node : removed) {
+                entryRemoved(true, node.key, node.value, null);
+            }
+        }
+    }
+
+    /**
+     * Returns up to {@code max} keys: first those read since the clock hand
+     * last passed them, then the others, newest first within each segment.
+     */
+    public final List<K> hotKeys(int max) {
+        List<K> referenced = new ArrayList<K>();
+        List<K> others = new ArrayList<K>();
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                for (Node<K, V> node = segment.head.prev; node != segment.head; node = node.prev) {
+                    (node.referenced ? referenced : others).add(node.key);
+                }
+            }
+        }
+        referenced.addAll(others);
+        return referenced.size() > max ? new ArrayList<K>(referenced.subList(0, max)) : referenced;
+    }
+
+    /**
+     * Called for entries that have been evicted or removed, after the lock
+     * guarding them has been released. The default implementation does
+     * nothing.
+     *
+     * @param evicted true if the entry is being removed to make space, false
+     *     if the removal was caused by a {@link #put} or {@link #remove}.
+     * @param newValue the new value for {@code key}, if it exists. If
+     *     non-null, this removal was caused by a {@link #put}.
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+    }
+
+    /**
+     * Returns the size of the entry for {@code key} and {@code value} in
+     * user-defined units. The default implementation returns 1. An entry's
+     * size must not change while it is in the cache.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    private int safeSizeOf(K key, V value) {
+        int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    private Segment<K, V> segmentFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & segmentMask];
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the
+     * number of entries in the cache. For all other caches, this returns
+     * the sum of the sizes of the entries in this cache.
+     */
+    public final long size() {
+        return size.get();
+    }
+
+    public final long maxSize() {
+        return maxSize;
+    }
+
+    public final long hitCount() {
+        long hits = 0;
+        for (Segment<K, V> segment : segments) {
+            hits += segment.hitCount.get();
+        }
+        return hits;
+    }
+
+    public final long missCount() {
+        long misses = 0;
+        for (Segment<K, V> segment : segments) {
+            misses += segment.missCount.get();
+        }
+        return misses;
+    }
+
+    public final long putCount() {
+        return putCount.get();
+    }
+
+    public final long evictionCount() {
+        return evictionCount.get();
+    }
+
+    @Override public final String toString() {
+        long hits = hitCount();
+        long accesses = hits + missCount();
+        int hitPercent = accesses != 0 ? (int) (100 * hits / accesses) : 0;
+        return String.format("StripedLruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                maxSize, hits, accesses - hits, hitPercent);
+    }
+
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final int size;
+        /** Read since the clock hand last passed this node. */
+        volatile boolean referenced;
+        /** Guarded by the segment. */
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /**
+     * The nodes of one stripe in a circular list, eldest first. The clock
+     * hand is always at the eldest node.
+     */
+    private static final class Segment<K, V> {
+        final Node<K, V> head = new Node<K, V>(null, null, 0);
+        int count;
+        /** Counted outside the lock. */
+        final AtomicLong hitCount = new AtomicLong();
+        final AtomicLong missCount = new AtomicLong();
+
+        Segment() {
+            clear();
+        }
+
+        void linkLast(Node<K, V> node) {
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
+            count++;
+        }
+
+        void unlink(Node<K, V> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            count--;
+        }
+
+        /**
+         * Unlinks and returns the eldest node that hasn't been referenced,
+         * giving the others a second chance. After one full turn the eldest
+         * node is evicted regardless, so that constant reads can't keep the
+         * hand spinning.
+         */
+        Node<K, V> evict() {
+            for (int steps = count; steps > 0; steps--) {
+                Node<K, V> node = head.next;
+                if (!node.referenced) {
+                    unlink(node);
+                    return node;
+                }
+                node.referenced = false;
+                unlink(node);
+                linkLast(node);
+            }
+            if (count == 0) {
+                return null;
+            }
+            Node<K, V> eldest = head.next;
+            unlink(eldest);
+            return eldest;
+        }
+
+        void clear() {
+            head.prev = head;
+            head.next = head;
+            count = 0;
+        }
+    }
+}
@@ -1,19 +1,36 @@
 package org.lance.lib.bitmap.common;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.ref.SoftReference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.lance.lib.BuildConfig;
+import org.lance.lib.bitmap.cache.CacheSizeTuner;
+import org.lance.lib.bitmap.cache.DiskCache;
 import org.lance.lib.bitmap.cache.DiskLruCache;
+import org.lance.lib.bitmap.cache.EncodedMemoryCache;
+import org.lance.lib.bitmap.cache.HotKeyFile;
+import org.lance.lib.bitmap.cache.SegmentedDiskLruCache;
+import org.lance.lib.bitmap.cache.StripedLruCache;
 import org.lance.lib.bitmap.core.BitmapCache;
 import org.lance.lib.bitmap.core.BitmapCache.Callback;
+import org.lance.lib.bitmap.core.BitmapCodec;
+import org.lance.lib.bitmap.core.CacheKey;
+import org.lance.lib.bitmap.recycle.BitmapPool;
+import org.lance.lib.bitmap.recycle.RecyclingBitmapDrawable;
 import org.lance.lib.bitmap.util.CacheUtils;
 
 import android.annotation.SuppressLint;
@@ -22,11 +39,10 @@ import android.app.Fragment;
 import android.app.FragmentManager;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
-import android.util.LruCache;
 
 /**
  * ʵ
@@ -40,18 +56,49 @@ public class CommonBitmapCache implements BitmapCache {
 	private static final String TAG = "CommonBitmapCache";
 
 	private Config mConfig;
-	private LruCache<String, Bitmap> mMemoryCache;
+	private StripedLruCache<CacheKey, BitmapDrawable> mMemoryCache;
+	//Ӧʱߵڴ滺ĴС,Ϊnull
+	private CacheSizeTuner<CacheKey> mSizeTuner;
+	//urlڴ滺ĸ(ͬĽߴ)
+	private final ConcurrentHashMap<String, ConcurrentHashMap<CacheKey, Boolean>> mMemoryVariants =
+			new ConcurrentHashMap<String, ConcurrentHashMap<CacheKey, Boolean>>();
+	//ڴ滺̭ʾͼƬ,ٴʱֱʹ,½,Ҳռһڴ
+	private final ConcurrentHashMap<CacheKey, ActiveReference> mActiveResources =
+			new ConcurrentHashMap<CacheKey, ActiveReference>();
+	private final ReferenceQueue<RecyclingBitmapDrawable> mActiveQueue =
+			new ReferenceQueue<RecyclingBitmapDrawable>();
+	//ʾеͼƬȡءȴŻڴ滺ͼƬ,retainѾ뻺
+	private final ConcurrentHashMap<CacheKey, RecyclingBitmapDrawable> mPromoting =
+			new ConcurrentHashMap<CacheKey, RecyclingBitmapDrawable>();
+	//̨:ʾеͼƬŻڴ滺(puṱͼƬŻظó,ڵgetFromMemoryUI߳),
+	//ѱıд
+	private static final ExecutorService sBackgroundExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			final Thread t = new Thread(r, "BitmapCache-background");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}
+	});
+	private final AtomicLong mActiveHitCount = new AtomicLong();
+	private final AtomicLong mVariantHitCount = new AtomicLong();
 
+	// ֻ̻Ĵ򿪡رպ,дDiskLruCacheԼͬ
 	private final Object mDiskCacheLock = new Object();
-	private DiskLruCache mDiskCache;
+	private DiskCache mDiskCache;
 	private boolean mDiskCacheStarting = true;
+	//ϴιرʱȵkey,򿪴̻ʱȡ,getHotKeysȡߺΪnull
+	private List<CacheKey> mHotKeys;
 
-	private Set<SoftReference<Bitmap>> mReusableBitmaps;
+	private BitmapPool mBitmapPool;
+	//,λͼûʱļֱӽ
+	private EncodedMemoryCache mEncodedCache;
 
-	// Compression settings when writing images to disk cache
-	private static final Bitmap.CompressFormat DEFAULT_COMPRESS_FORMAT = Bitmap.CompressFormat.PNG;
-	private static final int DEFAULT_COMPRESS_QUALITY = 70;
 	private static final int DISK_CACHE_INDEX = 0;
+	private static final int IO_BUFFER_SIZE = 8 * 1024;
+	//̻бı߳,ڵԼ1.5;Ļֱԭͼ
+	private static final int[] VARIANT_SIZES = {128, 192, 256, 384, 512, 768, 1024, 1536, 2048};
 
 	public static final int MESSAGE_CLEAR = 0;
 	public static final int MESSAGE_INIT_DISK_CACHE = 1;
@@ -77,21 +124,46 @@ public class CommonBitmapCache implements BitmapCache {
 	private void init(Config config) {
 		mConfig = config;
 		if (CacheUtils.hasHoneycomb()) {
-			mReusableBitmaps = Collections
-					.synchronizedSet(new HashSet<SoftReference<Bitmap>>());
+			//Ӧʱ,ڴ滺ʱóزøű
+			final int memCacheSize = Math.max(mConfig.memCacheSize, mConfig.memCacheMaxSize);
+			mBitmapPool = new BitmapPool((long) (memCacheSize * 1024L * mConfig.bitmapPoolRatio));
+		}
+		if (mConfig.encodedCacheSize > 0) {
+			mEncodedCache = new EncodedMemoryCache(mConfig.encodedCacheSize);
 		}
-		mMemoryCache = new LruCache<String, Bitmap>(mConfig.memCacheSize) {
+		if (mConfig.memCacheMaxSize > 0) {
+			mSizeTuner = new CacheSizeTuner<CacheKey>(mConfig.memCacheMinSize, mConfig.memCacheMaxSize,
+					mConfig.memCacheMinHitRatioPerMb);
+		}
+		//keyֶμ,ȡ,UI̵߳getFromMemoryȴ̵߳addToMemory
+		mMemoryCache = new StripedLruCache<CacheKey, BitmapDrawable>(mConfig.memCacheSize, mConfig.memCacheConcurrency) {
 			@Override
-			protected void entryRemoved(boolean evicted, String key,
-					Bitmap oldValue, Bitmap newValue) {
-				// System.err.println("entryRemoved:"+RecyclingBitmapDrawable.class.isInstance(oldValue));
-				mReusableBitmaps.add(new SoftReference<Bitmap>(oldValue));
+			protected void entryRemoved(boolean evicted, CacheKey key,
+					BitmapDrawable oldValue, BitmapDrawable newValue) {
+				if (newValue == null) {
+					removeVariant(key);
+					if (mSizeTuner != null) {
+						if (evicted) {
+							mSizeTuner.recordEviction(key);
+						} else {
+							mSizeTuner.recordRemoval(key);
+						}
+					}
+				}
+				//ʾʱRecyclingBitmapDrawableŻظó,ʾĲܸ
+				if (oldValue instanceof RecyclingBitmapDrawable) {
+					final RecyclingBitmapDrawable drawable = (RecyclingBitmapDrawable) oldValue;
+					//滻Ĳñ;ȵǼټ,֮ʾʱretainʧ
+					if (newValue == null && drawable.isDisplayed()) {
+						mActiveResources.put(key, new ActiveReference(key, drawable, mActiveQueue));
+					}
+					drawable.setIsCached(false);
+				}
 			}
 
 			@Override
-			protected int sizeOf(String key, Bitmap value) {
-				final int bitmapSize = CacheUtils.getBitmapSize(value) / 1024;
-				return bitmapSize == 0 ? 1 : bitmapSize;
+			protected int sizeOf(CacheKey key, BitmapDrawable value) {
+				return memorySizeOf(value);
 			}
 		};
 		new CacheAsyncTask(null).execute(MESSAGE_INIT_DISK_CACHE);
@@ -99,175 +171,508 @@ public class CommonBitmapCache implements BitmapCache {
 
 	
 	@Override
-	public void addToMemory(Object data, Bitmap value) {
+	public void addToMemory(Object data, BitmapDrawable value) {
 		if (data == null || value == null) {
 			return;
 		}
 		if (mMemoryCache != null) {
-			mMemoryCache.put(data.toString(), value);
+			if (value instanceof RecyclingBitmapDrawable) {
+				//ȼ,putʱϱ̭
+				((RecyclingBitmapDrawable) value).setBitmapPool(mBitmapPool);
+				((RecyclingBitmapDrawable) value).setIsCached(true);
+			}
+			final CacheKey key = CacheKey.memoryKey(data);
+			//ȵǼ,putʱ̭Ƴ
+			addVariant(key);
+			if (mSizeTuner != null) {
+				mSizeTuner.recordPut(key, memorySizeOf(value));
+			}
+			mMemoryCache.put(key, value);
+			tuneMemoryCache();
 		}
 	}
 
+	/** ڴ滺еĴС(KB) */
+	private static int memorySizeOf(BitmapDrawable value) {
+		final int bitmapSize = CacheUtils.getBitmapSize(value) / 1024;
+		return bitmapSize == 0 ? 1 : bitmapSize;
+	}
+
+	/**
+	 * Ӧʱߵڴ滺ĴС,ڹ̵߳addToMemoryе,Сʱ̭ᷢUI߳
+	 */
+	private void tuneMemoryCache() {
+		if (mSizeTuner == null) {
+			return;
+		}
+		final long maxSize = mMemoryCache.maxSize();
+		final long size = mSizeTuner.tune(maxSize);
+		if (size > 0) {
+			mMemoryCache.resize(size);
+			if (BuildConfig.DEBUG) {
+				Log.d(TAG, "Memory cache resized " + maxSize + "KB -> " + size + "KB, " + mSizeTuner);
+			}
+		}
+	}
+
+	/** Ӧڴ滺Сͳ,ûпʱΪnull */
+	public CacheSizeTuner<CacheKey> getSizeTuner() {
+		return mSizeTuner;
+	}
+
 	@Override
-	public Bitmap getFromMemory(Object data) {
-		Bitmap memValue = null;
+	public BitmapDrawable getFromMemory(Object data) {
+		BitmapDrawable memValue = null;
 		if (mMemoryCache != null) {
-			memValue = mMemoryCache.get(data.toString());
+			final CacheKey key = CacheKey.memoryKey(data);
+			memValue = mMemoryCache.get(key);
+			if (mSizeTuner != null) {
+				if (memValue != null) {
+					mSizeTuner.recordHit(key);
+				} else {
+					mSizeTuner.recordMiss(key);
+				}
+			}
+			if (memValue == null) {
+				memValue = getFromActiveResources(key);
+			}
+			if (memValue == null) {
+				//ı岻ȰĽ̫(ҲС)ʱֱʾ
+				final BitmapDrawable larger = getLargerVariant(key);
+				if (larger != null && CommonBitmapProcessor.calculateInSampleSize(
+						larger.getBitmap().getWidth(), larger.getBitmap().getHeight(),
+						key.getWidth(), key.getHeight()) == 1) {
+					mVariantHitCount.incrementAndGet();
+					memValue = larger;
+				}
+			}
 		}
 		return memValue;
 	}
 
+	@Override
+	public BitmapDrawable getLargerFromMemory(Object data) {
+		if (mMemoryCache == null) {
+			return null;
+		}
+		final BitmapDrawable larger = getLargerVariant(CacheKey.memoryKey(data));
+		if (larger != null) {
+			mVariantHitCount.incrementAndGet();
+		}
+		return larger;
+	}
+
+	/**
+	 * ڴ滺ͬһͼƬkeyС
+	 */
+	private BitmapDrawable getLargerVariant(CacheKey key) {
+		final ConcurrentHashMap<CacheKey, Boolean> variants = mMemoryVariants.get(key.getUrl());
+		if (variants == null) {
+			return null;
+		}
+		BitmapDrawable smallest = null;
+		int smallestSize = Integer.MAX_VALUE;
+		for (CacheKey variant : variants.keySet()) {
+			if (variant.equals(key) || !variant.covers(key)) {
+				continue;
+			}
+			final BitmapDrawable drawable = mMemoryCache.get(variant);
+			if (drawable == null || drawable.getBitmap() == null) {
+				continue;
+			}
+			final int size = CacheUtils.getBitmapSize(drawable);
+			if (size < smallestSize) {
+				smallest = drawable;
+				smallestSize = size;
+			}
+		}
+		return smallest;
+	}
+
+	private void addVariant(CacheKey key) {
+		ConcurrentHashMap<CacheKey, Boolean> variants = mMemoryVariants.get(key.getUrl());
+		if (variants == null) {
+			final ConcurrentHashMap<CacheKey, Boolean> created = new ConcurrentHashMap<CacheKey, Boolean>(4);
+			variants = mMemoryVariants.putIfAbsent(key.getUrl(), created);
+			if (variants == null) {
+				variants = created;
+			}
+		}
+		variants.put(key, Boolean.TRUE);
+	}
+
+	private void removeVariant(CacheKey key) {
+		final ConcurrentHashMap<CacheKey, Boolean> variants = mMemoryVariants.get(key.getUrl());
+		if (variants != null) {
+			variants.remove(key);
+			//addVariantͬʱʱܶյǼǵı,ֻһα
+			if (variants.isEmpty()) {
+				mMemoryVariants.remove(key.getUrl(), variants);
+			}
+		}
+	}
+
+	/**
+	 * ڻʾͼƬв,ҵֱӷ,ں̨߳·ڴ滺
+	 */
+	private BitmapDrawable getFromActiveResources(final CacheKey key) {
+		final RecyclingBitmapDrawable promoting = mPromoting.get(key);
+		if (promoting != null) {
+			mActiveHitCount.incrementAndGet();
+			return promoting;
+		}
+		purgeActiveResources();
+		final ActiveReference reference = mActiveResources.get(key);
+		//ֻƳɹ߳retain,ͬʱʱƻ
+		if (reference == null || !mActiveResources.remove(key, reference)) {
+			return null;
+		}
+		final RecyclingBitmapDrawable drawable = reference.get();
+		//ѾʾŻظóصĲ
+		if (drawable == null || !drawable.retain()) {
+			return null;
+		}
+		mPromoting.put(key, drawable);
+		sBackgroundExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				//Ƴ:putϱ̭,Ѿ
+				mPromoting.remove(key, drawable);
+				//retainѾ뻺
+				addVariant(key);
+				if (mSizeTuner != null) {
+					mSizeTuner.recordPut(key, memorySizeOf(drawable));
+				}
+				mMemoryCache.put(key, drawable);
+			}
+		});
+		mActiveHitCount.incrementAndGet();
+		return drawable;
+	}
+
+	/** ƳѱյͼƬĵǼ */
+	private void purgeActiveResources() {
+		ActiveReference reference;
+		while ((reference = (ActiveReference) mActiveQueue.poll()) != null) {
+			mActiveResources.remove(reference.mKey, reference);
+		}
+	}
+
+	/** ӻʾͼƬеõĴ */
+	public long getActiveHitCount() {
+		return mActiveHitCount.get();
+	}
+
+	/** ڴͬһͼƬıĴ */
+	public long getVariantHitCount() {
+		return mVariantHitCount.get();
+	}
+
 	@Override
 	public void addToDisk(Object data, Bitmap value) {
+		addToDisk(data, value, null);
+	}
+
+	@Override
+	public void addToDisk(Object data, Bitmap value, BitmapCodec codec) {
+		addToDisk(data, 0, value, codec);
+	}
+
+	/**
+	 * ڵ̱߳,غõvalue;ȷڴ,ں̨߳д
+	 */
+	@Override
+	public void addToDisk(Object data, int size, Bitmap value, BitmapCodec codec) {
+		if (codec == null) {
+			codec = mConfig.diskCodec;
+		}
+		final DiskCache diskCache;
 		synchronized (mDiskCacheLock) {
-			// Add to disk cache
-			if (mDiskCache != null) {
-				final String key = CacheUtils.hashKeyForDisk(data.toString());
-				OutputStream out = null;
-				try {
-					DiskLruCache.Snapshot snapshot = mDiskCache.get(key);
-					if (snapshot == null) {
-						final DiskLruCache.Editor editor = mDiskCache.edit(key);
-						if (editor != null) {
-							out = editor.newOutputStream(DISK_CACHE_INDEX);
-							value.compress(DEFAULT_COMPRESS_FORMAT,
-									DEFAULT_COMPRESS_QUALITY, out);
-							editor.commit();
-							out.close();
-						}
-					} else {
-						snapshot.getInputStream(DISK_CACHE_INDEX).close();
-					}
-				} catch (final IOException e) {
-					Log.e(TAG, "addBitmapToCache - " + e);
-				} catch (Exception e) {
-					Log.e(TAG, "addBitmapToCache - " + e);
-				} finally {
-					try {
-						if (out != null) {
-							out.close();
-						}
-						mDiskCache.flush();
-					} catch (IOException e) {
+			diskCache = mDiskCache;
+		}
+		// Add to disk cache
+		if (diskCache != null) {
+			final String key = CacheKey.diskKey(data, size);
+			try {
+				final DiskLruCache.Snapshot snapshot = diskCache.get(key);
+				if (snapshot != null) {
+					snapshot.close();
+					return;
+				}
+				final ByteArrayOutputStream out = new ByteArrayOutputStream();
+				codec.encode(value, out);
+				final byte[] encoded = out.toByteArray();
+				addToEncodedCache(key, ByteBuffer.wrap(encoded));
+				sBackgroundExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						writeToDisk(diskCache, key, encoded);
 					}
+				});
+			} catch (final IOException e) {
+				Log.e(TAG, "addBitmapToCache - " + e);
+			} catch (Exception e) {
+				Log.e(TAG, "addBitmapToCache - " + e);
+			}
+		}
+	}
+
+	private void writeToDisk(DiskCache diskCache, String key, byte[] encoded) {
+		OutputStream out = null;
+		try {
+			final DiskLruCache.Editor editor = diskCache.edit(key);
+			if (editor != null) {
+				out = editor.newOutputStream(DISK_CACHE_INDEX);
+				out.write(encoded);
+				out.close();
+				editor.commit();
+			}
+		} catch (final IOException e) {
+			Log.e(TAG, "writeToDisk - " + e);
+		} catch (IllegalStateException e) {
+			// closed by closeCache() or clearCache() meanwhile
+		} finally {
+			try {
+				if (out != null) {
+					out.close();
 				}
+				diskCache.flush();
+			} catch (IOException e) {
+			} catch (IllegalStateException e) {
+				// closed by closeCache() or clearCache() meanwhile
 			}
 		}
 	}
 
 	@Override
 	public InputStream getFromDisk(Object data) {
-		final String key = CacheUtils.hashKeyForDisk(data.toString());
+		final String key = CacheKey.diskKey(data, 0);
 		InputStream inputStream = null;
-		synchronized (mDiskCacheLock) {
-			while (mDiskCacheStarting) {
-				try {
-					mDiskCacheLock.wait();
-				} catch (InterruptedException e) {
+		final DiskCache diskCache = awaitDiskCache();
+		if (diskCache != null) {
+			try {
+				final DiskLruCache.Snapshot snapshot = diskCache.get(key);
+				if (snapshot != null) {
+					inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
 				}
+			} catch (final IOException e) {
+				Log.e(TAG, "getBitmapFromDiskCache - " + e);
+			} catch (IllegalStateException e) {
+				// closed by closeCache() or clearCache() meanwhile
 			}
-			if (mDiskCache != null) {
+		}
+		return inputStream;
+	}
+
+	@Override
+	public ByteBuffer addToDisk(Object data, InputStream source, long length) {
+		final DiskCache diskCache = awaitDiskCache();
+		if (diskCache == null) {
+			return null;
+		}
+		final String key = CacheKey.diskKey(data, 0);
+		DiskLruCache.Editor editor = null;
+		try {
+			editor = diskCache.edit(key);
+			if (editor == null) {
+				// ͬһkeyд
+				return null;
+			}
+			long written = 0;
+			final OutputStream out = editor.newOutputStream(DISK_CACHE_INDEX);
+			try {
+				final byte[] buffer = new byte[IO_BUFFER_SIZE];
+				int count;
+				while ((count = source.read(buffer)) != -1) {
+					out.write(buffer, 0, count);
+					written += count;
+				}
+			} finally {
+				out.close();
+			}
+			//жʱҲ,Ȳݲύ
+			if (length >= 0 && written != length) {
+				throw new IOException("expected " + length + " bytes, got " + written);
+			}
+			//ύǰӳ:ûб׼ʱļᱻɾ,ӳȻЧ
+			final ByteBuffer buffer = editor.map(DISK_CACHE_INDEX);
+			if (buffer.remaining() != written) {
+				throw new IOException("wrote " + buffer.remaining() + " of " + written + " bytes");
+			}
+			editor.commit();
+			editor = null;
+			addToEncodedCache(key, buffer);
+			return buffer;
+		} catch (final IOException e) {
+			Log.e(TAG, "addStreamToCache - " + e);
+		} catch (IllegalStateException e) {
+			// closed by closeCache() or clearCache() meanwhile
+		} finally {
+			if (editor != null) {
 				try {
-					final DiskLruCache.Snapshot snapshot = mDiskCache.get(key);
-					if (snapshot != null) {
-						inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
-					}
-				} catch (final IOException e) {
-					Log.e(TAG, "getBitmapFromDiskCache - " + e);
+					editor.abort();
+				} catch (IOException e) {
+				} catch (IllegalStateException e) {
 				}
 			}
-			return inputStream;
 		}
+		return null;
 	}
 
-	/**
-	 * @param options
-	 *            - BitmapFactory.Options with out* options populated
-	 * @return Bitmap that case be used for inBitmap
-	 */
-	protected Bitmap getBitmapFromReusableSet(BitmapFactory.Options options) {
-		Bitmap bitmap = null;
-
-		if (mReusableBitmaps != null && !mReusableBitmaps.isEmpty()) {
-			synchronized (mReusableBitmaps) {
-				final Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps
-						.iterator();
-				Bitmap item;
-
-				while (iterator.hasNext()) {
-					item = iterator.next().get();
-
-					if (null != item && item.isMutable()) {
-						// Check to see it the item can be used for inBitmap
-						if (canUseForInBitmap(item, options)) {
-							bitmap = item;
-
-							// Remove from reusable set so it can't be used
-							// again
-							iterator.remove();
-							break;
-						}
-					} else {
-						// Remove from the set if the reference has been
-						// cleared.
-						iterator.remove();
+	@Override
+	public void removeFromDisk(Object data, int size) {
+		final String key = CacheKey.diskKey(data, size);
+		if (mEncodedCache != null) {
+			mEncodedCache.remove(key);
+		}
+		final DiskCache diskCache = awaitDiskCache();
+		if (diskCache != null) {
+			try {
+				diskCache.remove(key);
+			} catch (final IOException e) {
+				Log.e(TAG, "removeFromDisk - " + e);
+			} catch (IllegalStateException e) {
+				// closed by closeCache() or clearCache() meanwhile
+			}
+		}
+	}
+
+	@Override
+	public ByteBuffer getBufferFromDisk(Object data) {
+		return getBufferFromDisk(data, 0);
+	}
+
+	@Override
+	public ByteBuffer getBufferFromDisk(Object data, int size) {
+		final String key = CacheKey.diskKey(data, size);
+		//Ȳڴеı,Ҫȴ̻
+		if (mEncodedCache != null) {
+			final ByteBuffer encoded = mEncodedCache.get(key);
+			if (encoded != null) {
+				return encoded;
+			}
+		}
+		ByteBuffer buffer = null;
+		final DiskCache diskCache = awaitDiskCache();
+		if (diskCache != null) {
+			try {
+				final DiskLruCache.Snapshot snapshot = diskCache.get(key);
+				if (snapshot != null) {
+					try {
+						// ӳڹرտպȻЧ
+						buffer = snapshot.map(DISK_CACHE_INDEX);
+						addToEncodedCache(key, buffer);
+					} finally {
+						snapshot.close();
 					}
 				}
+			} catch (final IOException e) {
+				Log.e(TAG, "getBufferFromDiskCache - " + e);
+			} catch (IllegalStateException e) {
+				// closed by closeCache() or clearCache() meanwhile
 			}
 		}
+		return buffer;
+	}
 
-		return bitmap;
+	private void addToEncodedCache(String key, ByteBuffer buffer) {
+		if (mEncodedCache != null && buffer != null) {
+			mEncodedCache.put(key, buffer);
+		}
 	}
 
-	/**
-	 * @param candidate
-	 *            - Bitmap to check
-	 * @param targetOptions
-	 *            - Options that have the out* value populated
-	 * @return true if <code>candidate</code> can be used for inBitmap re-use
-	 *         with <code>targetOptions</code>
-	 */
-	// @TargetApi(Build.VERSION_CODES.KITKAT)
-	private static boolean canUseForInBitmap(Bitmap candidate,
-			BitmapFactory.Options targetOptions) {
+	@Override
+	public int getVariantSize(int reqWidth, int reqHeight) {
+		final int req = Math.max(reqWidth, reqHeight);
+		if (req <= 0) {
+			return 0;
+		}
+		for (int size : VARIANT_SIZES) {
+			if (size >= req) {
+				return size;
+			}
+		}
+		return 0;
+	}
 
-		if (!CacheUtils.hasKitKat()) {
-			// On earlier versions, the dimensions must match exactly and the
-			// inSampleSize must be 1
-			return candidate.getWidth() == targetOptions.outWidth
-					&& candidate.getHeight() == targetOptions.outHeight
-					&& targetOptions.inSampleSize == 1;
+	@Override
+	public int[] getLargerVariantSizes(int size) {
+		if (size == 0) {
+			return new int[0];
+		}
+		int index = 0;
+		while (index < VARIANT_SIZES.length && VARIANT_SIZES[index] <= size) {
+			index++;
 		}
+		//ԭͼ
+		final int[] sizes = new int[VARIANT_SIZES.length - index + 1];
+		System.arraycopy(VARIANT_SIZES, index, sizes, 0, sizes.length - 1);
+		return sizes;
+	}
+
+	/** ȴ̻ */
+	private DiskCache awaitDiskCache() {
+		synchronized (mDiskCacheLock) {
+			while (mDiskCacheStarting) {
+				try {
+					mDiskCacheLock.wait();
+				} catch (InterruptedException e) {
+				}
+			}
+			return mDiskCache;
+		}
+	}
 
-		// From Android 4.4 (KitKat) onward we can re-use if the byte size of
-		// the new bitmap
-		// is smaller than the reusable bitmap candidate allocation byte count.
-		int width = targetOptions.outWidth / targetOptions.inSampleSize;
-		int height = targetOptions.outHeight / targetOptions.inSampleSize;
-		int byteCount = width * height
-				* getBytesPerPixel(candidate.getConfig());
-		return byteCount <= candidate.getByteCount();
-		// return byteCount <= candidate.getAllocationByteCount();
+	@Override
+	public List<CacheKey> getHotKeys() {
+		awaitDiskCache();
+		synchronized (mDiskCacheLock) {
+			final List<CacheKey> keys = mHotKeys;
+			mHotKeys = null;
+			return keys != null ? keys : Collections.<CacheKey> emptyList();
+		}
 	}
 
 	/**
-	 * Return the byte usage per pixel of a bitmap based on its configuration.
-	 * 
-	 * @param config
-	 *            The bitmap configuration.
-	 * @return The byte usage per pixel.
+	 * ڴ滺ʹõkeyͽ,´ʱԤ
 	 */
-	private static int getBytesPerPixel(Bitmap.Config config) {
-		if (config == Bitmap.Config.ARGB_8888) {
-			return 4;
-		} else if (config == Bitmap.Config.RGB_565) {
-			return 2;
-		} else if (config == Bitmap.Config.ARGB_4444) {
-			return 2;
-		} else if (config == Bitmap.Config.ALPHA_8) {
-			return 1;
+	private void writeHotKeys() {
+		final File dir = mConfig.diskCacheDir;
+		if (mConfig.hotKeyCount <= 0 || mMemoryCache == null || dir == null || !dir.exists()) {
+			return;
+		}
+		final List<HotKeyFile.Record> records = new ArrayList<HotKeyFile.Record>();
+		for (CacheKey key : mMemoryCache.hotKeys(mConfig.hotKeyCount)) {
+			records.add(new HotKeyFile.Record(key.getUrl(), key.getWidth(), key.getHeight(),
+					key.getConfig() != null ? key.getConfig().name() : null));
+		}
+		try {
+			new HotKeyFile(dir).write(records);
+		} catch (IOException e) {
+			Log.e(TAG, "writeHotKeys - " + e);
+		}
+	}
+
+	private List<CacheKey> readHotKeys() {
+		final List<CacheKey> keys = new ArrayList<CacheKey>();
+		try {
+			for (HotKeyFile.Record record : new HotKeyFile(mConfig.diskCacheDir).read()) {
+				try {
+					final Bitmap.Config config = record.config != null ? Bitmap.Config.valueOf(record.config) : null;
+					keys.add(CacheKey.of(record.url, record.width, record.height, config));
+				} catch (IllegalArgumentException e) {
+					// 汾д,
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "readHotKeys - " + e);
 		}
-		return 1;
+		return keys;
+	}
+
+	/** inBitmapó,HoneycombǰΪnull */
+	public BitmapPool getBitmapPool() {
+		return mBitmapPool;
 	}
 
 	private void initDiskCache() {
@@ -281,14 +686,23 @@ public class CommonBitmapCache implements BitmapCache {
 					}
 					if (getUsableSpace(diskCacheDir) > mConfig.diskCacheSize) {
 						try {
-							mDiskCache = DiskLruCache.open(diskCacheDir, 1, 1,
-									mConfig.diskCacheSize);
+							if (mConfig.diskCacheSegmentCount > 1) {
+								mDiskCache = SegmentedDiskLruCache.open(diskCacheDir, 1, 1,
+										mConfig.diskCacheSize, mConfig.diskCacheSegmentCount,
+										mConfig.diskCacheOptions);
+							} else {
+								mDiskCache = DiskLruCache.open(diskCacheDir, 1, 1,
+										mConfig.diskCacheSize, mConfig.diskCacheOptions);
+							}
 						} catch (final IOException e) {
 							mConfig.diskCacheDir = null;
 							Log.e(TAG, "initDiskCache - " + e);
 						}
 					}
 				}
+				if (mConfig.hotKeyCount > 0 && mConfig.diskCacheDir != null) {
+					mHotKeys = readHotKeys();
+				}
 			}
 			mDiskCacheStarting = false;
 			mDiskCacheLock.notifyAll();
@@ -298,6 +712,14 @@ public class CommonBitmapCache implements BitmapCache {
 	private void clearCache() {
 		if (mMemoryCache != null) {
 			mMemoryCache.evictAll();
+			mActiveResources.clear();
+			mMemoryVariants.clear();
+			if (mSizeTuner != null) {
+				mSizeTuner.clear();
+			}
+			if (mEncodedCache != null) {
+				mEncodedCache.evictAll();
+			}
 			if (BuildConfig.DEBUG) {
 				Log.d(TAG, "Memory cache cleared");
 			}
@@ -305,6 +727,9 @@ public class CommonBitmapCache implements BitmapCache {
 
 		synchronized (mDiskCacheLock) {
 			mDiskCacheStarting = true;
+			if (mConfig.diskCacheDir != null) {
+				new HotKeyFile(mConfig.diskCacheDir).delete();
+			}
 			if (mDiskCache != null && !mDiskCache.isClosed()) {
 				try {
 					mDiskCache.delete();
@@ -323,6 +748,14 @@ public class CommonBitmapCache implements BitmapCache {
 	public void clearMemoryCache() {
 		if (mMemoryCache != null) {
 			mMemoryCache.evictAll();
+			mActiveResources.clear();
+			mMemoryVariants.clear();
+			if (mSizeTuner != null) {
+				mSizeTuner.clear();
+			}
+			if (mEncodedCache != null) {
+				mEncodedCache.evictAll();
+			}
 			if (BuildConfig.DEBUG) {
 				Log.d(TAG, "Memory cache cleared");
 			}
@@ -343,7 +776,16 @@ public class CommonBitmapCache implements BitmapCache {
 	}
 
 	private void closeCache() {
+		if (BuildConfig.DEBUG) {
+			Log.d(TAG, "Disk codecs\n" + CommonBitmapCodec.dumpStats());
+			Log.d(TAG, String.valueOf(mBitmapPool));
+			Log.d(TAG, String.valueOf(mEncodedCache));
+			Log.d(TAG, String.valueOf(mSizeTuner));
+			Log.d(TAG, "Active resource hits=" + mActiveHitCount.get()
+					+ ", variant hits=" + mVariantHitCount.get());
+		}
 		synchronized (mDiskCacheLock) {
+			writeHotKeys();
 			if (mDiskCache != null) {
 				try {
 					if (!mDiskCache.isClosed()) {
@@ -397,6 +839,19 @@ public class CommonBitmapCache implements BitmapCache {
 		}
 	}
 
+	/**
+	 * ڴ滺keyǼǵ,ͼƬպmActiveResourcesƳ
+	 */
+	private static class ActiveReference extends WeakReference<RecyclingBitmapDrawable> {
+		final CacheKey mKey;
+
+		public ActiveReference(CacheKey key, RecyclingBitmapDrawable drawable,
+				ReferenceQueue<RecyclingBitmapDrawable> queue) {
+			super(drawable, queue);
+			mKey = key;
+		}
+	}
+
 	public static long getUsableSpace(File path) {
 		return path.getUsableSpace();
 	}
@@ -404,7 +859,26 @@ public class CommonBitmapCache implements BitmapCache {
 	public static class Config {
 		public File diskCacheDir;
 		private int memCacheSize;
+		//Ӧʱڴ滺СķΧ(KB),Ϊ0ʱ
+		private int memCacheMinSize;
+		private int memCacheMaxSize;
+		/** Ӧʱ,ÿ1MڴҪӵ,ﲻͲ */
+		public float memCacheMinHitRatioPerMb = 0.002f;
+		/** ͬʱдڴ滺߳,ڴ滺ķֶ */
+		public int memCacheConcurrency = 4;
+		/** inBitmapóصռڴ滺ı */
+		public float bitmapPoolRatio = 0.25f;
 		public int diskCacheSize;
+		/** ̻ķֶ,ÿжĿ¼־,1Ϊֶ */
+		public int diskCacheSegmentCount = 1;
+		/** ̻ĿѡΪ,ôļ洢Сͼ(packed) */
+		public DiskLruCache.Options diskCacheOptions = new DiskLruCache.Options();
+		/** λͼд̻Ĭϱ,BitmapDisplayConfig.setDiskCodecָ */
+		public BitmapCodec diskCodec = CommonBitmapCodec.AUTO;
+		/** ڶڴлݵֽ,λλͼʹ̻֮,0Ϊʹ */
+		public int encodedCacheSize;
+		/** رʱȵkeyĸ,´ʱԤЩͼƬ,0Ϊ */
+		public int hotKeyCount;
 		/** ڴĻ */
 		public void setMemCacheSizePercent(Context context, float percent) {
 			if (percent < 0.05f || percent > 0.8f) {
@@ -418,6 +892,22 @@ public class CommonBitmapCache implements BitmapCache {
 					* Runtime.getRuntime().maxMemory() / 1024);
 		}
 
+		/**
+		 * ڴ滺СķΧ,޿ʼ,ʵʵڷΧԶ
+		 */
+		public void setMemCacheSizeRange(Context context, float minPercent, float maxPercent) {
+			if (minPercent < 0.05f || maxPercent > 0.8f || minPercent > maxPercent) {
+				throw new IllegalArgumentException(
+						"setMemCacheSizeRange - percents must be "
+								+ "between 0.05 and 0.8 (inclusive), min <= max");
+			}
+			memCacheMinSize = Math.round(minPercent
+					* Runtime.getRuntime().maxMemory() / 1024);
+			memCacheMaxSize = Math.round(maxPercent
+					* Runtime.getRuntime().maxMemory() / 1024);
+			memCacheSize = memCacheMinSize;
+		}
+
 		private static int getMemoryClass(Context context) {
 			return ((ActivityManager) context
 					.getSystemService(Context.ACTIVITY_SERVICE))
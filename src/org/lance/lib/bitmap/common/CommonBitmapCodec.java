@@ -0,0 +1,286 @@
+package org.lance.lib.bitmap.common;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.lance.lib.bitmap.core.BitmapCodec;
+import org.lance.lib.bitmap.util.ByteBufferInputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * Bitmap.compress롢BitmapFactoryĴ̱,ͳƱĺʱʹС
+ * @author lance
+ *
+ */
+public class CommonBitmapCodec implements BitmapCodec {
+	/** ƬȲ͸ͼƬ */
+	public static final CommonBitmapCodec JPEG = new CommonBitmapCodec("jpeg", Bitmap.CompressFormat.JPEG, 85,
+			new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF});
+	/** ,,ֻʺ͸ͨͼƬ */
+	public static final CommonBitmapCodec PNG = new CommonBitmapCodec("png", Bitmap.CompressFormat.PNG, 100,
+			new byte[] {(byte) 0x89, 'P', 'N', 'G'});
+	/** ѹ,ʱֱӸ,ʺͼ */
+	public static final RawBitmapCodec RAW = new RawBitmapCodec();
+	/** ͸ͨPNG,JPEG */
+	public static final BitmapCodec AUTO = alphaAware(JPEG);
+
+	/** API 14ûWEBP */
+	private static final boolean WEBP_SUPPORTED = Build.VERSION.SDK_INT >= 14;
+	private static final CommonBitmapCodec[] CODECS = WEBP_SUPPORTED
+			? new CommonBitmapCodec[] {JPEG, PNG, webp(), RAW}
+			: new CommonBitmapCodec[] {JPEG, PNG, RAW};
+
+	private final String mName;
+	private final Bitmap.CompressFormat mFormat;
+	private final int mQuality;
+	private final byte[] mMagic;
+	//RIFFӵ8ֽڿʼĸʽ,Ϊnull
+	private final byte[] mRiffType;
+	private final Stats mStats = new Stats();
+
+	protected CommonBitmapCodec(String name, Bitmap.CompressFormat format, int quality, byte[] magic) {
+		this(name, format, quality, magic, null);
+	}
+
+	private CommonBitmapCodec(String name, Bitmap.CompressFormat format, int quality, byte[] magic,
+			byte[] riffType) {
+		mName = name;
+		mFormat = format;
+		mQuality = quality;
+		mMagic = magic;
+		mRiffType = riffType;
+	}
+
+	/**
+	 * JPEGС,;API 14·null.
+	 * CompressFormat.WEBPھϵͳϲ,ֻõʱż
+	 */
+	public static CommonBitmapCodec webp() {
+		return WEBP_SUPPORTED ? WebpHolder.WEBP : null;
+	}
+
+	/**
+	 * ͸ͨʱPNG,opaqueı;opaqueΪnull(ϵͳϵwebp())ʱJPEG
+	 */
+	public static BitmapCodec alphaAware(CommonBitmapCodec opaque) {
+		return new AlphaAwareCodec(opaque != null ? opaque : JPEG);
+	}
+
+	/**
+	 * ͷҵӦı,ʶ𷵻null
+	 */
+	public static CommonBitmapCodec forData(ByteBuffer source) {
+		for (CommonBitmapCodec codec : CODECS) {
+			if (codec.canDecode(source)) {
+				return codec;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * ֱͳ
+	 */
+	public static String dumpStats() {
+		StringBuilder builder = new StringBuilder();
+		for (CommonBitmapCodec codec : CODECS) {
+			builder.append(codec.mName).append(": ").append(codec.mStats).append('\n');
+		}
+		return builder.toString();
+	}
+
+	@Override
+	public String getName() {
+		return mName;
+	}
+
+	public Stats getStats() {
+		return mStats;
+	}
+
+	@Override
+	public final void encode(Bitmap bitmap, OutputStream out) throws IOException {
+		final long start = System.nanoTime();
+		final CountingOutputStream counter = new CountingOutputStream(out);
+		write(bitmap, counter);
+		mStats.recordEncode(System.nanoTime() - start, counter.mCount);
+	}
+
+	@Override
+	public boolean canDecode(ByteBuffer source) {
+		if (!startsWith(source, 0, mMagic)) {
+			return false;
+		}
+		//RIFFҪ8ֽڿʼWEBP
+		return mRiffType == null || startsWith(source, 8, mRiffType);
+	}
+
+	@Override
+	public final Bitmap decode(ByteBuffer source, BitmapFactory.Options options) {
+		if (options.inJustDecodeBounds) {
+			return read(source, options);
+		}
+		final long start = System.nanoTime();
+		final Bitmap bitmap = read(source, options);
+		if (bitmap != null) {
+			mStats.recordDecode(System.nanoTime() - start);
+		}
+		return bitmap;
+	}
+
+	/** ,Ը */
+	protected void write(Bitmap bitmap, OutputStream out) throws IOException {
+		if (!bitmap.compress(mFormat, mQuality, out)) {
+			throw new IOException("compress failed: " + mName);
+		}
+	}
+
+	/** ,Ը */
+	protected Bitmap read(ByteBuffer source, BitmapFactory.Options options) {
+		return decodeStream(source, options);
+	}
+
+	/**
+	 * ֱӽ,(MappedByteBuffer)ķʽȡ,
+	 */
+	static Bitmap decodeStream(ByteBuffer source, BitmapFactory.Options options) {
+		if (source.hasArray()) {
+			return BitmapFactory.decodeByteArray(source.array(),
+					source.arrayOffset() + source.position(), source.remaining(), options);
+		}
+		return BitmapFactory.decodeStream(new ByteBufferInputStream(source), null, options);
+	}
+
+	static boolean startsWith(ByteBuffer source, int offset, byte[] magic) {
+		if (source.remaining() < offset + magic.length) {
+			return false;
+		}
+		final int start = source.position() + offset;
+		for (int i = 0; i < magic.length; i++) {
+			if (source.get(start + i) != magic[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * ʱͱĴС
+	 */
+	public static class Stats {
+		private long mEncodeCount;
+		private long mEncodeNanos;
+		private long mEncodedBytes;
+		private long mDecodeCount;
+		private long mDecodeNanos;
+
+		synchronized void recordEncode(long nanos, long bytes) {
+			mEncodeCount++;
+			mEncodeNanos += nanos;
+			mEncodedBytes += bytes;
+		}
+
+		synchronized void recordDecode(long nanos) {
+			mDecodeCount++;
+			mDecodeNanos += nanos;
+		}
+
+		public synchronized long getEncodeCount() {
+			return mEncodeCount;
+		}
+
+		public synchronized long getDecodeCount() {
+			return mDecodeCount;
+		}
+
+		/** ƽʱ(΢) */
+		public synchronized long getAverageEncodeMicros() {
+			return mEncodeCount == 0 ? 0 : mEncodeNanos / mEncodeCount / 1000;
+		}
+
+		/** ƽʱ(΢) */
+		public synchronized long getAverageDecodeMicros() {
+			return mDecodeCount == 0 ? 0 : mDecodeNanos / mDecodeCount / 1000;
+		}
+
+		/** ÿƽֽ */
+		public synchronized long getAverageEncodedBytes() {
+			return mEncodeCount == 0 ? 0 : mEncodedBytes / mEncodeCount;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "encodes=" + mEncodeCount + " encodeUs=" + getAverageEncodeMicros()
+					+ " bytes=" + getAverageEncodedBytes() + " decodes=" + mDecodeCount
+					+ " decodeUs=" + getAverageDecodeMicros();
+		}
+	}
+
+	/**
+	 * Ƿ͸ͨѡ,ͷ
+	 */
+	private static class AlphaAwareCodec implements BitmapCodec {
+		private final CommonBitmapCodec mOpaque;
+
+		public AlphaAwareCodec(CommonBitmapCodec opaque) {
+			mOpaque = opaque;
+		}
+
+		@Override
+		public String getName() {
+			return "auto(" + mOpaque.getName() + ")";
+		}
+
+		@Override
+		public void encode(Bitmap bitmap, OutputStream out) throws IOException {
+			(bitmap.hasAlpha() ? PNG : mOpaque).encode(bitmap, out);
+		}
+
+		@Override
+		public boolean canDecode(ByteBuffer source) {
+			return PNG.canDecode(source) || mOpaque.canDecode(source);
+		}
+
+		@Override
+		public Bitmap decode(ByteBuffer source, BitmapFactory.Options options) {
+			final CommonBitmapCodec codec = forData(source);
+			return codec != null ? codec.decode(source, options) : null;
+		}
+	}
+
+	/**
+	 * һεwebp()ʱųʼ,ϵͳCommonBitmapCodecʱҲCompressFormat.WEBP
+	 */
+	private static class WebpHolder {
+		static final CommonBitmapCodec WEBP = new CommonBitmapCodec("webp", Bitmap.CompressFormat.WEBP, 80,
+				new byte[] {'R', 'I', 'F', 'F'}, new byte[] {'W', 'E', 'B', 'P'});
+	}
+
+	/**
+	 * ͳдֽ
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long mCount;
+
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int oneByte) throws IOException {
+			out.write(oneByte);
+			mCount++;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			out.write(buffer, offset, length);
+			mCount += length;
+		}
+	}
+}
@@ -6,17 +6,21 @@ import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
 
 import org.lance.lib.bitmap.core.BitmapCache;
 import org.lance.lib.bitmap.core.BitmapDisplayConfig;
 import org.lance.lib.bitmap.core.BitmapLoader;
 import org.lance.lib.bitmap.core.BitmapProcessor;
 import org.lance.lib.bitmap.core.BitmapWorker;
+import org.lance.lib.bitmap.core.CacheKey;
+import org.lance.lib.bitmap.recycle.BitmapPool;
 import org.lance.lib.bitmap.util.CacheUtils;
 
 import android.content.Context;
@@ -38,11 +42,15 @@ public class CommonBitmapLoader implements BitmapLoader {
 	private File mHttpCacheDir;
 	private final Object mHttpDirLock = new Object();
 	private boolean mHttpDirStarting = true;
+	//صֱд̻,ʱļ,Ҳ±
+	private boolean mPassthrough;
 
 	private static final int HTTP_CACHE_SIZE = 10 * 1024 * 1024; // 10MB
 	private static final int IO_BUFFER_SIZE = 8 * 1024;
 	private static final String HTTP_CACHE_DIR = "http_temp";
 	private static final int MESSAGE_INIT_HTTP_DIR = 0;
+	//downloadToDiskѾȡݵûеõ
+	private static final ByteBuffer DOWNLOAD_FAILED = ByteBuffer.allocate(0);
 
 	public CommonBitmapLoader(Context context){
 		if(Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())){
@@ -63,6 +71,14 @@ public class CommonBitmapLoader implements BitmapLoader {
 		new CacheAsyncTask().execute(MESSAGE_INIT_HTTP_DIR);
 	}
 
+	/**
+	 * Ƿصԭʼֱд̻,ٴӻ;
+	 * ̻治áûдBitmapDisplayConfigָ˴̱ʱʹʱļ
+	 */
+	public void setPassthrough(boolean passthrough){
+		mPassthrough = passthrough;
+	}
+
 	private void initHttpDir() {
 		synchronized (mHttpDirLock) {
 			System.out.println("BitmapLoader->initHttpDir:HttpDir-exists:"+mHttpCacheDir.exists());
@@ -84,30 +100,56 @@ public class CommonBitmapLoader implements BitmapLoader {
 		Bitmap bitmap = null;
 		InputStream inputStream = null;
 		File temp = null;
-		inputStream = getFromDisk(object);
-		if(inputStream==null){
-			String url = object.toString();
-			String key = CacheUtils.hashKeyForDisk(url);
-			synchronized (mHttpDirLock) {
-				while (mHttpDirStarting) {
-					try {
-						mHttpDirLock.wait();
-					} catch (InterruptedException e) {}
-				}
-			}
-			System.out.println("BitmapLoader->load:HttpDir-exists:"+mHttpCacheDir.exists());
-			if (!mHttpCacheDir.exists()) {
-				mHttpCacheDir.mkdirs();
-			}
-			//urlͬ,ᷢ
-			temp = new File(mHttpCacheDir, key);
-			inputStream = getFromNetToFile(url, temp, progressRef);
-		}else{
+		//ʱֱӴӳڴ,پļ
+		//ߴı,Ҹıԭͼ
+		final int size = mCache.getVariantSize(displayConfig.getBitmapWidth(), displayConfig.getBitmapHeight());
+		ByteBuffer buffer = size!=0 ? mCache.getBufferFromDisk(object, size) : null;
+		final boolean exact = buffer!=null;
+		if(buffer==null){
+			buffer = getLargerFromDisk(object, size);
+		}
+		if(buffer!=null){
 			final BitmapWorker.Progress progress = progressRef.get();
 			if(progress!=null){
 				progress.setProgress(100, 100);
 			}
+			if(exact){
+				return processor.process(buffer, displayConfig, mCache);
+			}
+			return processVariant(object, size, buffer, processor, displayConfig);
+		}
+		String url = object.toString();
+		//ָ˴̱ʱҪȽٰñд
+		if(mPassthrough && displayConfig.getDiskCodec()==null){
+			buffer = downloadToDisk(url, object, progressRef.get());
+			if(buffer!=null){
+				//Ѿȡص,ʱʱļ
+				if(!buffer.hasRemaining()){
+					return null;
+				}
+				bitmap = processVariant(object, size, buffer, processor, displayConfig);
+				if(bitmap==null){
+					//ܽͼƬ,ɾԺÿζӻ
+					mCache.removeFromDisk(object, 0);
+				}
+				return bitmap;
+			}
+		}
+		String key = CacheKey.diskKey(object, 0);
+		synchronized (mHttpDirLock) {
+			while (mHttpDirStarting) {
+				try {
+					mHttpDirLock.wait();
+				} catch (InterruptedException e) {}
+			}
 		}
+		System.out.println("BitmapLoader->load:HttpDir-exists:"+mHttpCacheDir.exists());
+		if (!mHttpCacheDir.exists()) {
+			mHttpCacheDir.mkdirs();
+		}
+		//urlͬ,ᷢ
+		temp = new File(mHttpCacheDir, key);
+		inputStream = getFromNetToFile(url, temp, progressRef);
 		if(inputStream instanceof FileInputStream){
 			try {
 				FileDescriptor fd = ((FileInputStream) inputStream).getFD();
@@ -126,8 +168,58 @@ public class CommonBitmapLoader implements BitmapLoader {
 		return bitmap;
 	}
 
-	private InputStream getFromDisk(Object data){
-		return mCache.getFromDisk(data);
+	/**
+	 * رsizeС,ûʱԭͼ
+	 */
+	private ByteBuffer getLargerFromDisk(Object data, int size){
+		if(size==0){
+			return mCache.getBufferFromDisk(data, 0);
+		}
+		for(int larger : mCache.getLargerVariantSizes(size)){
+			ByteBuffer buffer = mCache.getBufferFromDisk(data, larger);
+			if(buffer!=null){
+				return buffer;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Ӹıԭͼʱ,ڱСɱ߳Ϊsizeıд,
+	 * ԺͬߴֻСı
+	 */
+	private Bitmap processVariant(Object data, int size, ByteBuffer source,
+			BitmapProcessor processor, BitmapDisplayConfig displayConfig){
+		//ԭͼͲʱҪ
+		if(size==0 || !CommonBitmapProcessor.isLargerThan(source, size)){
+			return processor.process(source, displayConfig, mCache);
+		}
+		BitmapDisplayConfig variantConfig = new BitmapDisplayConfig()
+				.setBitmapWidth(size)
+				.setBitmapHeight(size)
+				.bitmapConfig(displayConfig.getDecodingOptions().inPreferredConfig);
+		Bitmap variant = processor.process(source, variantConfig, mCache);
+		if(variant==null){
+			return null;
+		}
+		//󷵻,дں̨
+		mCache.addToDisk(data, size, variant, displayConfig.getDiskCodec());
+		//ͨҪʾĳߴ,ٽ;ҪСʱ岻ʹ,Żظó
+		Bitmap bitmap = processor.process(variant, displayConfig, mCache);
+		if(bitmap!=variant){
+			releaseBitmap(variant);
+		}
+		return bitmap;
+	}
+
+	private void releaseBitmap(Bitmap bitmap){
+		final BitmapPool pool = mCache instanceof CommonBitmapCache
+				? ((CommonBitmapCache) mCache).getBitmapPool() : null;
+		if(pool!=null){
+			pool.put(bitmap);
+		}else{
+			bitmap.recycle();
+		}
 	}
 
 	private InputStream getFromNetToFile(String url, File file, WeakReference<BitmapWorker.Progress> progressRef){
@@ -143,6 +235,38 @@ public class CommonBitmapLoader implements BitmapLoader {
 		return inputStream;
 	}
 
+	/**
+	 * زֱд̻,д;ûпʼȡʱnull,
+	 * ȡݵûеõʱDOWNLOAD_FAILED
+	 */
+	private ByteBuffer downloadToDisk(String urlString, Object object, BitmapWorker.Progress progress) {
+		CacheUtils.disableConnectionReuseIfNecessary();
+		HttpURLConnection urlConnection = null;
+		ProgressInputStream in = null;
+		try {
+			final URL url = new URL(urlString);
+			urlConnection = (HttpURLConnection) url.openConnection();
+			final int length = urlConnection.getContentLength();
+			in = new ProgressInputStream(urlConnection.getInputStream(), length, progress);
+			final ByteBuffer buffer = mCache.addToDisk(object, in, length);
+			if (buffer != null) {
+				return buffer;
+			}
+		} catch (final IOException e) {
+			Log.e(TAG, "Error in downloadToDisk - " + e);
+		} finally {
+			if (urlConnection != null) {
+				urlConnection.disconnect();
+			}
+			try {
+				if (in != null) {
+					in.close();
+				}
+			} catch (final IOException e) {}
+		}
+		return in != null && in.mCount > 0 ? DOWNLOAD_FAILED : null;
+	}
+
 	private boolean downloadToFile(String urlString, File file, BitmapWorker.Progress progress) {
 		CacheUtils.disableConnectionReuseIfNecessary();
 		HttpURLConnection urlConnection = null;
@@ -181,6 +305,46 @@ public class CommonBitmapLoader implements BitmapLoader {
 		return false;
 	}
 
+	/**
+	 * ȡʱؽ
+	 */
+	private static class ProgressInputStream extends FilterInputStream {
+		private final int mTotal;
+		private final BitmapWorker.Progress mProgress;
+		private int mCount;
+
+		public ProgressInputStream(InputStream in, int total, BitmapWorker.Progress progress) {
+			super(in);
+			mTotal = total;
+			mProgress = progress;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				onRead(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int count = super.read(buffer, offset, length);
+			if (count > 0) {
+				onRead(count);
+			}
+			return count;
+		}
+
+		private void onRead(int count) {
+			mCount += count;
+			if (mProgress != null) {
+				mProgress.setProgress(mTotal, mCount);
+			}
+		}
+	}
+
 	protected class CacheAsyncTask extends AsyncTask<Object, Void, Void> {
 
 		@Override
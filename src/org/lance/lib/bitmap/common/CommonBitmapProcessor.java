@@ -1,6 +1,7 @@
 package org.lance.lib.bitmap.common;
 
 import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
 
 import org.lance.lib.bitmap.core.BitmapCache;
 import org.lance.lib.bitmap.core.BitmapDisplayConfig;
@@ -24,6 +25,68 @@ public class CommonBitmapProcessor implements BitmapProcessor {
 		return bitmap;
 	}
 
+	@Override
+	public Bitmap process(ByteBuffer source, BitmapDisplayConfig config, BitmapCache cache) {
+		return decodeSampledBitmapFromBuffer(source, config.getBitmapWidth(), config.getBitmapHeight(), config.getDecodingOptions(), (CommonBitmapCache)cache);
+	}
+
+	@Override
+	public Bitmap process(Bitmap source, BitmapDisplayConfig config, BitmapCache cache) {
+		//ͽʱһСı,Ӵ̽ĳߴͬ
+		final int sampleSize = calculateInSampleSize(source.getWidth(), source.getHeight(),
+				config.getBitmapWidth(), config.getBitmapHeight());
+		if (sampleSize <= 1) {
+			return source;
+		}
+		return Bitmap.createScaledBitmap(source, Math.max(1, source.getWidth() / sampleSize),
+				Math.max(1, source.getHeight() / sampleSize), true);
+	}
+
+	/**
+	 * ByteBuffer,ͷѡ(CommonBitmapCodec),ȡ߽ʱֻļͷ,
+	 */
+	public static Bitmap decodeSampledBitmapFromBuffer(
+			ByteBuffer buffer, int reqWidth, int reqHeight, BitmapFactory.Options options, CommonBitmapCache cache) {
+		final CommonBitmapCodec codec = CommonBitmapCodec.forData(buffer);
+		BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+		decodeOptions.inPreferredConfig = options.inPreferredConfig;
+		decodeOptions.inJustDecodeBounds = true;
+		decodeBuffer(codec, buffer, decodeOptions);
+		//ԭʼذдʱĳߴ
+		decodeOptions.inSampleSize = codec instanceof RawBitmapCodec
+				? 1 : calculateInSampleSize(decodeOptions, reqWidth, reqHeight);
+		if (CacheUtils.hasHoneycomb()) {
+			addInBitmapOptions(decodeOptions, cache);
+		}
+
+		decodeOptions.inJustDecodeBounds = false;
+		final Bitmap bitmap = decodeBuffer(codec, buffer, decodeOptions);
+		recycleUnusedInBitmap(decodeOptions, bitmap, cache);
+		return bitmap;
+	}
+
+	/**
+	 * size x sizeʱǷС,ǷֵΪsizeһ
+	 */
+	public static boolean isLargerThan(ByteBuffer buffer, int size) {
+		final CommonBitmapCodec codec = CommonBitmapCodec.forData(buffer);
+		if (codec instanceof RawBitmapCodec) {
+			return false;
+		}
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		decodeBuffer(codec, buffer, options);
+		return options.outWidth > 0 && calculateInSampleSize(options, size, size) > 1;
+	}
+
+	private static Bitmap decodeBuffer(CommonBitmapCodec codec, ByteBuffer buffer, BitmapFactory.Options options) {
+		if (codec != null) {
+			return codec.decode(buffer, options);
+		}
+		//ʶĸʽ(GIF)BitmapFactory
+		return CommonBitmapCodec.decodeStream(buffer, options);
+	}
+
 	public static Bitmap decodeSampledBitmapFromDescriptor(
 			FileDescriptor fileDescriptor, int reqWidth, int reqHeight, BitmapFactory.Options options, CommonBitmapCache cache) {
 		BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
@@ -39,7 +102,18 @@ public class CommonBitmapProcessor implements BitmapProcessor {
 		}
 
 		decodeOptions.inJustDecodeBounds = false;
-		return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, decodeOptions);
+		final Bitmap bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor, null, decodeOptions);
+		recycleUnusedInBitmap(decodeOptions, bitmap, cache);
+		return bitmap;
+	}
+
+	/**
+	 * ʧܻû(ԭʼصĳߴ硢ò)ʱ,ӸóȡinBitmapŻȥ,ȻͶ
+	 */
+	private static void recycleUnusedInBitmap(BitmapFactory.Options options, Bitmap bitmap, CommonBitmapCache cache) {
+		if (options.inBitmap != null && options.inBitmap != bitmap) {
+			cache.getBitmapPool().put(options.inBitmap);
+		}
 	}
 
 	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
@@ -48,9 +122,9 @@ public class CommonBitmapProcessor implements BitmapProcessor {
 		// return mutable bitmaps.
 		options.inMutable = true;
 
-		if (cache != null) {
+		if (cache != null && cache.getBitmapPool() != null) {
 			// Try and find a bitmap to use for inBitmap
-			Bitmap inBitmap = cache.getBitmapFromReusableSet(options);
+			Bitmap inBitmap = cache.getBitmapPool().get(options);
 
 			if (inBitmap != null) {
 				options.inBitmap = inBitmap;
@@ -17,6 +17,14 @@ public class CommonBitmapWorkerFactory {
 	private static final String DISK_CACHE_DIR = "Common";
 	//30MĴ̻ռ
 	private static final int DISK_CACHE_SIZE = 30 * 1024 * 1024;
+	//ֶ̻
+	private static final int DISK_CACHE_SEGMENTS = 4;
+	//־ύļ()
+	private static final long DISK_CACHE_GROUP_COMMIT_MS = 100;
+	//4Mıڴ滺
+	private static final int ENCODED_CACHE_SIZE = 4 * 1024 * 1024;
+	//رʱ桢´ʱԤصȵͼƬ
+	private static final int HOT_KEY_COUNT = 32;
 	//شС
 	private static final int POOL_SIZE = 2;
 	/**
@@ -31,11 +39,23 @@ public class CommonBitmapWorkerFactory {
 		CommonBitmapCache.Config cacheConfig = new CommonBitmapCache.Config();
 		cacheConfig.diskCacheDir = CacheUtils.getDiskCacheDir(context, DISK_CACHE_DIR);
 		cacheConfig.diskCacheSize = DISK_CACHE_SIZE;
-		cacheConfig.setMemCacheSizePercent(context, 0.5f);
+		cacheConfig.diskCacheSegmentCount = DISK_CACHE_SEGMENTS;
+		cacheConfig.diskCacheOptions.groupCommitIntervalMillis = DISK_CACHE_GROUP_COMMIT_MS;
+		cacheConfig.diskCacheOptions.clock = true;
+		//dedup:blobҪܶ,lazyOpenû
+		cacheConfig.diskCacheOptions.lazyOpen = true;
+		//ڴ滺10%50%֮䰴Զ,ͬĻҪĴСͬ
+		cacheConfig.setMemCacheSizeRange(context, 0.1f, 0.5f);
+		cacheConfig.encodedCacheSize = ENCODED_CACHE_SIZE;
+		cacheConfig.hotKeyCount = HOT_KEY_COUNT;
+		//̼߳UI߳
+		cacheConfig.memCacheConcurrency = POOL_SIZE + 1;
 		CommonBitmapCache cache = CommonBitmapCache.getInstance(fragmentManager, cacheConfig);
 		BitmapWorker.BitmapWorkerConfig config = new BitmapWorker.BitmapWorkerConfig(context.getResources());
 		config.processor = new CommonBitmapProcessor();
-		config.loader = new CommonBitmapLoader(context, cache);
+		CommonBitmapLoader loader = new CommonBitmapLoader(context, cache);
+		loader.setPassthrough(true);
+		config.loader = loader;
 		config.poolSize = POOL_SIZE;
 		config.displayer = new CommonBitmapDisplayer();
 		config.defaultDisplayConfig = displayConfig;
@@ -51,6 +71,7 @@ public class CommonBitmapWorkerFactory {
 	 */
 	public static BitmapWorker createBitmapWorker(Context context, CommonBitmapCache cache, BitmapWorker.BitmapWorkerConfig config) {
 		BitmapWorker worker = new BitmapWorker(context, config, cache);
+		worker.preloadHotKeys();
 		return worker;
 	}
 }
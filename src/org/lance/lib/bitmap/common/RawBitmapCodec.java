@@ -0,0 +1,103 @@
+package org.lance.lib.bitmap.common;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.lance.lib.bitmap.recycle.BitmapPool;
+import org.lance.lib.bitmap.util.CacheUtils;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * ѹر:16ֽڵͷ(ǡߡBitmap.Config)copyPixelsToBuffer.
+ * ʱBitmapFactory,ֱӸƵߴöͬ(KitKatԺǷĴС)inBitmap½λͼ,
+ * ֧inSampleSize,дʱĳߴ,ֻʺͼ
+ * @author lance
+ *
+ */
+public class RawBitmapCodec extends CommonBitmapCodec {
+	//"LRAW"
+	private static final byte[] MAGIC = {'L', 'R', 'A', 'W'};
+	private static final int HEADER_SIZE = 16;
+	private static final Bitmap.Config[] CONFIGS = Bitmap.Config.values();
+
+	RawBitmapCodec() {
+		super("raw", null, 0, MAGIC);
+	}
+
+	@Override
+	protected void write(Bitmap bitmap, OutputStream out) throws IOException {
+		final Bitmap.Config config = bitmap.getConfig();
+		if (config == null) {
+			//δ֪ظʽ
+			PNG.encode(bitmap, out);
+			return;
+		}
+		final ByteBuffer pixels = ByteBuffer.allocate(bitmap.getRowBytes() * bitmap.getHeight());
+		bitmap.copyPixelsToBuffer(pixels);
+		final DataOutputStream data = new DataOutputStream(out);
+		data.write(MAGIC);
+		data.writeInt(bitmap.getWidth());
+		data.writeInt(bitmap.getHeight());
+		data.writeInt(config.ordinal());
+		data.write(pixels.array(), 0, pixels.position());
+		data.flush();
+	}
+
+	@Override
+	protected Bitmap read(ByteBuffer source, BitmapFactory.Options options) {
+		if (source.remaining() < HEADER_SIZE) {
+			return null;
+		}
+		final int start = source.position();
+		final int width = source.getInt(start + 4);
+		final int height = source.getInt(start + 8);
+		final int ordinal = source.getInt(start + 12);
+		if (width <= 0 || height <= 0 || ordinal < 0 || ordinal >= CONFIGS.length) {
+			return null;
+		}
+		final Bitmap.Config config = CONFIGS[ordinal];
+		options.outWidth = width;
+		options.outHeight = height;
+		options.outMimeType = null;
+		if (options.inJustDecodeBounds) {
+			return null;
+		}
+		final ByteBuffer pixels = source.duplicate();
+		pixels.position(start + HEADER_SIZE);
+		if (pixels.remaining() < width * height * BitmapPool.getBytesPerPixel(config)) {
+			//д벻
+			return null;
+		}
+		Bitmap bitmap = options.inBitmap;
+		if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()) {
+			bitmap = Bitmap.createBitmap(width, height, config);
+		} else if (bitmap.getWidth() != width || bitmap.getHeight() != height
+				|| bitmap.getConfig() != config) {
+			if (!reconfigure(bitmap, width, height, config)) {
+				//òϵinBitmapɵ߷Żظó
+				bitmap = Bitmap.createBitmap(width, height, config);
+			}
+		}
+		bitmap.copyPixelsFromBuffer(pixels);
+		return bitmap;
+	}
+
+	/**
+	 * KitKatԺĴСþ͸ĳҪĳߴ,BitmapFactoryinBitmapһ
+	 */
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private static boolean reconfigure(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+		if (!CacheUtils.hasKitKat()
+				|| bitmap.getAllocationByteCount() < width * height * BitmapPool.getBytesPerPixel(config)) {
+			return false;
+		}
+		bitmap.reconfigure(width, height, config);
+		return true;
+	}
+}
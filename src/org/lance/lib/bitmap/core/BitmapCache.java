@@ -1,8 +1,11 @@
 package org.lance.lib.bitmap.core;
 
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 
 /**
  * λͼӿ---ȴԼʵ
@@ -10,14 +13,37 @@ import android.graphics.Bitmap;
  *
  */
 public interface BitmapCache {
-	/** λͼӵڴ */
-	public void addToMemory(Object data, Bitmap bitmap);
-	/** ڴлȡλͼ */
-	public Bitmap getFromMemory(Object data);
+	/** λͼӵڴ,RecyclingBitmapDrawableڻʱü */
+	public void addToMemory(Object data, BitmapDrawable drawable);
+	/** ڴлȡλͼ,ûʱԷͬһͼƬԴı */
+	public BitmapDrawable getFromMemory(Object data);
+	/** ڴлȡͬһͼƬСĸ,ûзnull */
+	public BitmapDrawable getLargerFromMemory(Object data);
 	/** λͼ */
 	public void addToDisk(Object data, Bitmap bitmap);
+	/** ָıλͼ,codecΪnullʱʹĬϱ */
+	public void addToDisk(Object data, Bitmap bitmap, BitmapCodec codec);
 	/** Ӵлȡ */
 	public InputStream getFromDisk(Object data);
+	/** Ӵлȡӳ䵽ڴ,;ڷnull */
+	public ByteBuffer getBufferFromDisk(Object data);
+	/** ĿߴС߳,0ʾֻԭͼ */
+	public int getVariantSize(int reqWidth, int reqHeight);
+	/** sizeı߳,С,һԭͼ(0);sizeΪ0ʱΪ */
+	public int[] getLargerVariantSizes(int size);
+	/** Ӵлȡ߳Ϊsizeı(0Ϊԭͼ)ӳ䵽ڴ;ڷnull */
+	public ByteBuffer getBufferFromDisk(Object data, int size);
+	/** λͼΪ߳Ϊsizeı(0Ϊԭͼ)ӵ,codecΪnullʱʹĬϱ;غʹbitmap,дں̨ */
+	public void addToDisk(Object data, int size, Bitmap bitmap, BitmapCodec codec);
+	/**
+	 * ԭʼ(ص)ֱд,д;̻ûб(δ׼)ʱҲ,.
+	 * lengthΪԤڵֽ(Content-Length),δ֪ʱΪ-1;ݲûд뷵null
+	 */
+	public ByteBuffer addToDisk(Object data, InputStream source, long length);
+	/** ɾб߳Ϊsizeı(0Ϊԭͼ),޷ */
+	public void removeFromDisk(Object data, int size);
+	/** ϴιرʱڴеȵkey(),ֻһ;ȴ̻,ҪUI̵߳ */
+	public List<CacheKey> getHotKeys();
 	/** رջص */
 	public void postClose(Callback callback);
 	/** ص */
@@ -0,0 +1,24 @@
+package org.lance.lib.bitmap.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * λͼڴ̻еı뷽ʽ
+ * @author lance
+ *
+ */
+public interface BitmapCodec {
+	/**  */
+	String getName();
+	/** λͼд */
+	void encode(Bitmap bitmap, OutputStream out) throws IOException;
+	/** ͷжǷֱ */
+	boolean canDecode(ByteBuffer source);
+	/** ,inJustDecodeBoundsʱֻȡߴ;ܽ뷵null */
+	Bitmap decode(ByteBuffer source, BitmapFactory.Options options);
+}
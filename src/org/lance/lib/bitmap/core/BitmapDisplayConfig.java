@@ -17,6 +17,8 @@ public class BitmapDisplayConfig {
 	private BitmapDrawable loadfailDrawable;
 
 	private BitmapFactory.Options decodingOptions = new BitmapFactory.Options();
+	//д̻ı,nullʱʹûĬϱ
+	private BitmapCodec diskCodec;
 
 	public BitmapDisplayConfig(){
 		decodingOptions.inPurgeable = true;
@@ -67,4 +69,13 @@ public class BitmapDisplayConfig {
 	public BitmapFactory.Options getDecodingOptions(){
 		return decodingOptions;
 	}
+
+	public BitmapCodec getDiskCodec() {
+		return diskCodec;
+	}
+
+	public BitmapDisplayConfig setDiskCodec(BitmapCodec diskCodec) {
+		this.diskCodec = diskCodec;
+		return this;
+	}
 }
@@ -1,6 +1,7 @@
 package org.lance.lib.bitmap.core;
 
 import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
 
 import android.graphics.Bitmap;
 
@@ -12,4 +13,8 @@ import android.graphics.Bitmap;
 public interface BitmapProcessor {
 	/** úͻ洦ļλͼ */
 	Bitmap process(FileDescriptor source, BitmapDisplayConfig config, BitmapCache cache);
+	/** úͻ洦ڴ(ӳļ)ݷλͼ */
+	Bitmap process(ByteBuffer source, BitmapDisplayConfig config, BitmapCache cache);
+	/** ðڴͬһͼƬλͼС,ҪСʱsource */
+	Bitmap process(Bitmap source, BitmapDisplayConfig config, BitmapCache cache);
 }
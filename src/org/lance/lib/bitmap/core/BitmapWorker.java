@@ -1,9 +1,15 @@
 package org.lance.lib.bitmap.core;
 
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lance.lib.bitmap.recycle.RecyclingBitmapDrawable;
+import org.lance.lib.bitmap.recycle.RecyclingImageView;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
@@ -12,7 +18,9 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
+import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
 
@@ -22,6 +30,7 @@ import android.widget.ImageView;
  *
  */
 public class BitmapWorker {
+	private static final String TAG = "BitmapWorker";
 	private Resources mResources;
 	private boolean mExitTasksEarly = false;
 	private boolean mPauseWork = false;
@@ -29,6 +38,8 @@ public class BitmapWorker {
 	private ExecutorService mExecutor;
 	private BitmapWorkerConfig mConfig;
 	private BitmapCache mCache;
+	//ύûнļ,0ʱԤó߳
+	private final AtomicInteger mPendingTasks = new AtomicInteger();
 
 	public BitmapWorker(Context context, BitmapWorkerConfig config, BitmapCache cache) {
 		mResources = context.getResources();
@@ -61,23 +72,85 @@ public class BitmapWorker {
 		if (displayConfig == null)
 			displayConfig = mConfig.defaultDisplayConfig;
 
-		Bitmap bitmap = null;
+		//Ļͼضʹkey,ظ
+		final CacheKey key = CacheKey.of(data, displayConfig);
+		BitmapDrawable drawable = null;
 
 		if (mCache != null) {
-			bitmap = mCache.getFromMemory(data);
+			drawable = mCache.getFromMemory(key);
 		}
-		System.err.println("loadImage:"+bitmap);
+		System.err.println("loadImage:"+drawable);
 
-		if (bitmap != null) {
-			imageView.setImageBitmap(bitmap);
-		} else if (cancelPotentialWork(data, imageView)) {
+		if (drawable != null) {
+			imageView.setImageDrawable(drawable);
+			pinIfUntracked(imageView, drawable);
+		} else if (cancelPotentialWork(key, imageView)) {
 			final BitmapLoadAndDisplayTask task = new BitmapLoadAndDisplayTask(imageView, progress, displayConfig);
 			final AsyncDrawable asyncDrawable = new AsyncDrawable(mResources, displayConfig.getLoadingDrawable(), task);
 			imageView.setImageDrawable(asyncDrawable);
-			task.executeOnExecutor(mExecutor, data);
+			mPendingTasks.incrementAndGet();
+			task.executeOnExecutor(mExecutor, key);
 		}
 	}
 
+	/**
+	 * ں̨ȼϴιرʱȵͼƬӴ̽뵽ڴ,ֻ̻,.
+	 * мʱֹͣ,߳ø.Ӧڴ󡢿ʼͼƬ֮ǰ
+	 */
+	public void preloadHotKeys() {
+		if (mCache == null) {
+			return;
+		}
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				final long start = SystemClock.uptimeMillis();
+				final List<CacheKey> keys = mCache.getHotKeys();
+				int loaded = 0;
+				int index = 0;
+				for (; index < keys.size(); index++) {
+					if (mPendingTasks.get() > 0 || mExitTasksEarly) {
+						break;
+					}
+					final CacheKey key = keys.get(index);
+					if (mCache.getFromMemory(key) != null) {
+						continue;
+					}
+					final Bitmap bitmap = decodeFromDisk(key);
+					if (bitmap != null) {
+						mCache.addToMemory(key, new RecyclingBitmapDrawable(mResources, bitmap));
+						loaded++;
+					}
+				}
+				Log.d(TAG, "preloadHotKeys - loaded " + loaded + " of " + keys.size() + " in "
+						+ (SystemClock.uptimeMillis() - start) + "ms"
+						+ (index < keys.size() ? ", stopped for requests" : ""));
+			}
+		}, "BitmapWorker-preload");
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * keyĽӴ̻еıԭͼ,ûзnull
+	 */
+	private Bitmap decodeFromDisk(CacheKey key) {
+		final BitmapDisplayConfig config = new BitmapDisplayConfig()
+				.setBitmapWidth(key.getWidth())
+				.setBitmapHeight(key.getHeight())
+				.bitmapConfig(key.getConfig());
+		final int size = mCache.getVariantSize(key.getWidth(), key.getHeight());
+		ByteBuffer buffer = size != 0 ? mCache.getBufferFromDisk(key, size) : null;
+		if (buffer == null) {
+			//sizeı,ԭͼ
+			final int[] sizes = size != 0 ? mCache.getLargerVariantSizes(size) : new int[] {0};
+			for (int i = 0; i < sizes.length && buffer == null; i++) {
+				buffer = mCache.getBufferFromDisk(key, sizes[i]);
+			}
+		}
+		return buffer != null ? mConfig.processor.process(buffer, config, mCache) : null;
+	}
+
 	public void postCloseCache(BitmapCache.Callback callback){
 		mCache.postClose(callback);
 	}
@@ -117,7 +190,7 @@ public class BitmapWorker {
 	 *
 	 */
 	@SuppressLint("NewApi")
-	private class BitmapLoadAndDisplayTask extends AsyncTask<Object, Void, Bitmap> {
+	private class BitmapLoadAndDisplayTask extends AsyncTask<Object, Void, BitmapDrawable> {
 		private Object data;
 		private final WeakReference<ImageView> imageViewReference;
 		private final WeakReference<Progress> progressReference;
@@ -130,9 +203,10 @@ public class BitmapWorker {
 		}
 
 		@Override //Object Ӧ͵һ StringӦ
-		protected Bitmap doInBackground(Object... params) {
+		protected BitmapDrawable doInBackground(Object... params) {
 			data = params[0];
 			Bitmap bitmap = null;
+			RecyclingBitmapDrawable drawable = null;
 
 			synchronized (mPauseWorkLock) {
 				while (mPauseWork && !isCancelled()) {
@@ -144,40 +218,85 @@ public class BitmapWorker {
 			}
 
 			if (!isCancelled() && getAttachedImageView() != null && !mExitTasksEarly) {
-				bitmap = mConfig.loader.load(data, progressReference, mConfig.processor, displayConfig, mResources);
+				//ڴͬһͼƬıʱֱС,Ҳ
+				drawable = fromLargerVariant();
+				if (drawable == null) {
+					bitmap = mConfig.loader.load(data, progressReference, mConfig.processor, displayConfig, mResources);
+				}
 			}
 
 			if (bitmap != null) {
-				mCache.addToMemory(data, bitmap);
-				mCache.addToDisk(data, bitmap);
+				drawable = new RecyclingBitmapDrawable(mResources, bitmap);
+				//һ,ʾ֮ǰʹڴ滺̭ҲŻظó
+				drawable.setIsCached(true);
+				mCache.addToMemory(data, drawable);
+				mCache.addToDisk(data, bitmap, displayConfig.getDiskCodec());
 			}
 
-			return bitmap;
+			return drawable;
+		}
+
+		/**
+		 * Сڴиı岢ڴ滺,صͼƬͼصһһ
+		 */
+		private RecyclingBitmapDrawable fromLargerVariant() {
+			final BitmapDrawable larger = mCache.getLargerFromMemory(data);
+			//retainʧ˵ѾŻظó,λͼڱĽ븲
+			if (!(larger instanceof RecyclingBitmapDrawable) || !((RecyclingBitmapDrawable) larger).retain()) {
+				return null;
+			}
+			final RecyclingBitmapDrawable source = (RecyclingBitmapDrawable) larger;
+			final Bitmap bitmap = mConfig.processor.process(source.getBitmap(), displayConfig, mCache);
+			if (bitmap == source.getBitmap()) {
+				//ҪС,retainļеļ
+				return source;
+			}
+			source.setIsCached(false);
+			if (bitmap == null) {
+				return null;
+			}
+			final RecyclingBitmapDrawable drawable = new RecyclingBitmapDrawable(mResources, bitmap);
+			drawable.setIsCached(true);
+			mCache.addToMemory(data, drawable);
+			return drawable;
 		}
 
-		@Override //BitmapdoInbackgroundķֵ
-		protected void onPostExecute(Bitmap bitmap) {
+		@Override //BitmapDrawabledoInbackgroundķֵ
+		protected void onPostExecute(BitmapDrawable drawable) {
+			final BitmapDrawable result = drawable;
 			if (isCancelled() || mExitTasksEarly) {
-				bitmap = null;
+				drawable = null;
 			}
 
 			// ж̺߳͵ǰimageviewǷƥ
 			final ImageView imageView = getAttachedImageView();
-			if (bitmap != null && imageView != null) {
-				mConfig.displayer.show(imageView, bitmap);
-			} else if (bitmap == null && imageView != null) {
+			if (drawable != null && imageView != null) {
+				mConfig.displayer.show(imageView, drawable);
+				pinIfUntracked(imageView, drawable);
+			} else if (drawable == null && imageView != null) {
 				mConfig.displayer.show(imageView, displayConfig.getLoadfailDrawable());
 			}
+			release(result);
+			mPendingTasks.decrementAndGet();
 		}
 
 		@Override //ȡ
-		protected void onCancelled(Bitmap bitmap) {
-			super.onCancelled(bitmap);
+		protected void onCancelled(BitmapDrawable drawable) {
+			super.onCancelled(drawable);
+			release(drawable);
+			mPendingTasks.decrementAndGet();
 			synchronized (mPauseWorkLock) {
 				mPauseWorkLock.notifyAll();
 			}
 		}
 
+		//ͷdoInBackgroundеļ
+		private void release(BitmapDrawable drawable) {
+			if (drawable instanceof RecyclingBitmapDrawable) {
+				((RecyclingBitmapDrawable) drawable).setIsCached(false);
+			}
+		}
+
 		//ȡǰƥimageView,ֹ
 		private ImageView getAttachedImageView() {
 			final ImageView imageView = imageViewReference.get();
@@ -189,6 +308,16 @@ public class BitmapWorker {
 		}
 	}
 
+	/**
+	 * ͨImageView֪ͨʾ״̬,޷֪λͼʱʾ,
+	 * ԶΪʾ,λͼᱻŻظó,ֻGC
+	 */
+	private static void pinIfUntracked(ImageView imageView, BitmapDrawable drawable) {
+		if (drawable instanceof RecyclingBitmapDrawable && !(imageView instanceof RecyclingImageView)) {
+			((RecyclingBitmapDrawable) drawable).setIsDisplayed(true);
+		}
+	}
+
 	private static boolean cancelPotentialWork(Object data, ImageView imageView) {
 		final BitmapLoadAndDisplayTask bitmapWorkerTask = getBitmapTaskFromImageView(imageView);
 
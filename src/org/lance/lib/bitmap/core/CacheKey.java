@@ -0,0 +1,161 @@
+package org.lance.lib.bitmap.core;
+
+import org.lance.lib.bitmap.util.CacheUtils;
+
+import android.graphics.Bitmap;
+
+/**
+ * һĻkey,BitmapWorker.loadImageдһ,֮ڴ滺桢̻ͼֱʹ,
+ * ظtoStringͼMD5.ɱ.
+ * toStringԭ(url),԰dataֻʶObjectʵҲû;
+ * equalsȽurlͽ,ֱΪڴ滺key
+ * @author lance
+ *
+ */
+public final class CacheKey {
+	private final Object mData;
+	private final String mUrl;
+	//urlMD5
+	private final long mHashHigh;
+	private final long mHashLow;
+	private final String mDiskKey;
+	//Ľ
+	private final int mWidth;
+	private final int mHeight;
+	private final Bitmap.Config mConfig;
+	private final int mHashCode;
+
+	private CacheKey(Object data, int width, int height, Bitmap.Config config) {
+		mData = data;
+		mUrl = data.toString();
+		final byte[] digest = CacheUtils.md5(mUrl);
+		long high = 0;
+		long low = 0;
+		if (digest != null) {
+			for (int i = 0; i < 8; i++) {
+				high = (high << 8) | (digest[i] & 0xFF);
+				low = (low << 8) | (digest[i + 8] & 0xFF);
+			}
+			mDiskKey = CacheUtils.bytesToHexString(digest);
+		} else {
+			high = mUrl.hashCode();
+			mDiskKey = String.valueOf(mUrl.hashCode());
+		}
+		mHashHigh = high;
+		mHashLow = low;
+		mWidth = width;
+		mHeight = height;
+		mConfig = config;
+		int hash = (int) (high ^ (high >>> 32));
+		hash = 31 * hash + width;
+		hash = 31 * hash + height;
+		mHashCode = 31 * hash + (config != null ? config.ordinal() : -1);
+	}
+
+	/**
+	 * Ϊdataʾôkey,dataѾCacheKeyʱֱӷ
+	 */
+	public static CacheKey of(Object data, BitmapDisplayConfig config) {
+		if (data instanceof CacheKey) {
+			return (CacheKey) data;
+		}
+		if (config == null) {
+			return new CacheKey(data, 0, 0, null);
+		}
+		return new CacheKey(data, config.getBitmapWidth(), config.getBitmapHeight(),
+				config.getDecodingOptions().inPreferredConfig);
+	}
+
+	/**
+	 * ñĽ´key,ԤϴεȵͼƬ
+	 */
+	public static CacheKey of(Object data, int width, int height, Bitmap.Config config) {
+		return new CacheKey(data, width, height, config);
+	}
+
+	/**
+	 * dataڴ滺key,CacheKeyʱ.ͬһurlͬߴõλͼǲͬkey
+	 */
+	public static CacheKey memoryKey(Object data) {
+		return of(data, null);
+	}
+
+	/** dataĴ̻key:urlMD5,sizeΪ0ʱϱı߳ */
+	public static String diskKey(Object data, int size) {
+		final String key = data instanceof CacheKey
+				? ((CacheKey) data).mDiskKey : CacheUtils.hashKeyForDisk(data.toString());
+		return size == 0 ? key : key + "_" + size;
+	}
+
+	public Object getData() {
+		return mData;
+	}
+
+	public String getUrl() {
+		return mUrl;
+	}
+
+	/**
+	 * ͬһurlͬһ,ߴ粻Сotherĳߴ;Ϊ0ʾԭͼ,κγߴ綼
+	 */
+	public boolean covers(CacheKey other) {
+		if (mConfig != other.mConfig || !mUrl.equals(other.mUrl)) {
+			return false;
+		}
+		if (mWidth == 0 && mHeight == 0) {
+			return true;
+		}
+		if (other.mWidth == 0 && other.mHeight == 0) {
+			return false;
+		}
+		return mWidth >= other.mWidth && mHeight >= other.mHeight;
+	}
+
+	public String getDiskKey() {
+		return mDiskKey;
+	}
+
+	public long getHashHigh() {
+		return mHashHigh;
+	}
+
+	public long getHashLow() {
+		return mHashLow;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	public Bitmap.Config getConfig() {
+		return mConfig;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof CacheKey)) {
+			return false;
+		}
+		final CacheKey other = (CacheKey) o;
+		return mHashHigh == other.mHashHigh && mHashLow == other.mHashLow
+				&& mWidth == other.mWidth && mHeight == other.mHeight
+				&& mConfig == other.mConfig && mUrl.equals(other.mUrl);
+	}
+
+	@Override
+	public int hashCode() {
+		return mHashCode;
+	}
+
+	@Override
+	public String toString() {
+		return mUrl;
+	}
+}
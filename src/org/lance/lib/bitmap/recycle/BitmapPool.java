@@ -0,0 +1,245 @@
+package org.lance.lib.bitmap.recycle;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.lance.lib.bitmap.util.CacheUtils;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * inBitmapλͼ--Լ,СBitmap.Config,˰LRṶ
+ * @author lance
+ *
+ */
+public class BitmapPool {
+    // KitKatԺĴСþܸ,Ҫ̫λͼȥСͼ
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private final long mMaxSize;
+    private final boolean mSizeFit;
+    private long mSize;
+
+    // KitKatԺ:ÿðС,ҲСҪСһ
+    private final Map<Bitmap.Config, TreeMap<Integer, ArrayDeque<Bitmap>>> mBySize =
+            new HashMap<Bitmap.Config, TreeMap<Integer, ArrayDeque<Bitmap>>>();
+    // KitKatǰ:ߺöҪͬ
+    private final Map<Long, ArrayDeque<Bitmap>> mByDimensions = new HashMap<Long, ArrayDeque<Bitmap>>();
+    // еλͼ,ǰ
+    private final LinkedHashSet<Bitmap> mLru = new LinkedHashSet<Bitmap>();
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mReusedBytes;
+    private long mEvictionCount;
+
+    /**
+     * @param maxSize the most bytes of pixels the pool holds
+     */
+    public BitmapPool(long maxSize) {
+        mMaxSize = maxSize;
+        mSizeFit = CacheUtils.hasKitKat();
+    }
+
+    /**
+     * Offers a bitmap that is no longer used for reuse. Bitmaps that are
+     * immutable, recycled or larger than the pool are ignored.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() == null) {
+            return;
+        }
+        final int size = sizeOf(bitmap);
+        if (size > mMaxSize || !mLru.add(bitmap)) {
+            return;
+        }
+        bucketOf(bitmap).addLast(bitmap);
+        mSize += size;
+        while (mSize > mMaxSize) {
+            final Iterator<Bitmap> eldest = mLru.iterator();
+            final Bitmap victim = eldest.next();
+            eldest.remove();
+            removeFromBucket(victim);
+            mSize -= sizeOf(victim);
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * Takes a bitmap that can be used as inBitmap to decode with
+     * {@code options}, whose out* fields and inSampleSize must be set.
+     * Returns null if there is none.
+     */
+    public synchronized Bitmap get(BitmapFactory.Options options) {
+        final Bitmap.Config config = options.inPreferredConfig != null
+                ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        final int sampleSize = Math.max(1, options.inSampleSize);
+        Bitmap bitmap = null;
+        if (mSizeFit) {
+            final int width = (options.outWidth + sampleSize - 1) / sampleSize;
+            final int height = (options.outHeight + sampleSize - 1) / sampleSize;
+            final int needed = width * height * getBytesPerPixel(config);
+            final TreeMap<Integer, ArrayDeque<Bitmap>> sizes = mBySize.get(config);
+            final Integer fit = sizes != null ? sizes.ceilingKey(needed) : null;
+            if (fit != null && fit <= (long) needed * MAX_SIZE_MULTIPLE) {
+                bitmap = take(sizes.get(fit));
+                if (sizes.get(fit).isEmpty()) {
+                    sizes.remove(fit);
+                }
+            }
+        } else if (sampleSize == 1) {
+            // On earlier versions, the dimensions must match exactly and the
+            // inSampleSize must be 1
+            final Long key = dimensionKey(options.outWidth, options.outHeight, config);
+            final ArrayDeque<Bitmap> bitmaps = mByDimensions.get(key);
+            if (bitmaps != null) {
+                bitmap = take(bitmaps);
+                if (bitmaps.isEmpty()) {
+                    mByDimensions.remove(key);
+                }
+            }
+        }
+        if (bitmap == null) {
+            mMissCount++;
+            return null;
+        }
+        final int size = sizeOf(bitmap);
+        mLru.remove(bitmap);
+        mSize -= size;
+        mHitCount++;
+        mReusedBytes += size;
+        return bitmap;
+    }
+
+    /** The most recently returned bitmap of a group. */
+    private static Bitmap take(ArrayDeque<Bitmap> bitmaps) {
+        return bitmaps.pollLast();
+    }
+
+    private ArrayDeque<Bitmap> bucketOf(Bitmap bitmap) {
+        ArrayDeque<Bitmap> bitmaps;
+        if (mSizeFit) {
+            TreeMap<Integer, ArrayDeque<Bitmap>> sizes = mBySize.get(bitmap.getConfig());
+            if (sizes == null) {
+                sizes = new TreeMap<Integer, ArrayDeque<Bitmap>>();
+                mBySize.put(bitmap.getConfig(), sizes);
+            }
+            final int size = sizeOf(bitmap);
+            bitmaps = sizes.get(size);
+            if (bitmaps == null) {
+                bitmaps = new ArrayDeque<Bitmap>();
+                sizes.put(size, bitmaps);
+            }
+        } else {
+            final Long key = dimensionKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            bitmaps = mByDimensions.get(key);
+            if (bitmaps == null) {
+                bitmaps = new ArrayDeque<Bitmap>();
+                mByDimensions.put(key, bitmaps);
+            }
+        }
+        return bitmaps;
+    }
+
+    private void removeFromBucket(Bitmap bitmap) {
+        if (mSizeFit) {
+            final TreeMap<Integer, ArrayDeque<Bitmap>> sizes = mBySize.get(bitmap.getConfig());
+            final int size = sizeOf(bitmap);
+            final ArrayDeque<Bitmap> bitmaps = sizes.get(size);
+            bitmaps.remove(bitmap);
+            if (bitmaps.isEmpty()) {
+                sizes.remove(size);
+            }
+        } else {
+            final Long key = dimensionKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            final ArrayDeque<Bitmap> bitmaps = mByDimensions.get(key);
+            bitmaps.remove(bitmap);
+            if (bitmaps.isEmpty()) {
+                mByDimensions.remove(key);
+            }
+        }
+    }
+
+    private static Long dimensionKey(int width, int height, Bitmap.Config config) {
+        return ((long) width << 32) | ((long) height << 4) | config.ordinal();
+    }
+
+    /** The bytes a bitmap can hold when reused. */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private int sizeOf(Bitmap bitmap) {
+        return mSizeFit ? bitmap.getAllocationByteCount() : bitmap.getByteCount();
+    }
+
+    /**
+     * Return the byte usage per pixel of a bitmap based on its configuration.
+     *
+     * @param config
+     *            The bitmap configuration.
+     * @return The byte usage per pixel.
+     */
+    public static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) {
+            return 4;
+        } else if (config == Bitmap.Config.RGB_565) {
+            return 2;
+        } else if (config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 1;
+    }
+
+    public synchronized void clear() {
+        mBySize.clear();
+        mByDimensions.clear();
+        mLru.clear();
+        mSize = 0;
+    }
+
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /** ,01 */
+    public synchronized float getHitRate() {
+        final long requests = mHitCount + mMissCount;
+        return requests == 0 ? 0 : (float) mHitCount / requests;
+    }
+
+    /** õλͼֽ,ٷڴ */
+    public synchronized long getReusedBytes() {
+        return mReusedBytes;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool[size=" + mSize + "/" + mMaxSize + ",bitmaps=" + mLru.size()
+                + ",hits=" + mHitCount + ",misses=" + mMissCount
+                + ",reusedBytes=" + mReusedBytes + ",evictions=" + mEvictionCount + "]";
+    }
+}
@@ -5,7 +5,7 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 
 /**
- * ڴͼƬ--ü㷨жǷ
+ * ڴͼƬ--ü㷨жǷ;˸óʱrecycle,ǷŻس
  * @author lance
  *
  */
@@ -16,11 +16,23 @@ public class RecyclingBitmapDrawable extends BitmapDrawable {
     private int mDisplayRefCount = 0;
 
     private boolean mHasBeenDisplayed;
+    private boolean mHasBeenCached;
+
+    private BitmapPool mPool;
+    private boolean mReleased;
 
     public RecyclingBitmapDrawable(Resources res, Bitmap bitmap) {
         super(res, bitmap);
     }
 
+    /**
+     * Returns the bitmap to {@code pool} instead of recycling it once it is
+     * neither cached nor displayed.
+     */
+    public synchronized void setBitmapPool(BitmapPool pool) {
+        mPool = pool;
+    }
+
     /**
      * Notify the drawable that the displayed state has changed. Internally a
      * count is kept so that the drawable knows when it is no longer being
@@ -52,6 +64,7 @@ public class RecyclingBitmapDrawable extends BitmapDrawable {
         synchronized (this) {
             if (isCached) {
                 mCacheRefCount++;
+                mHasBeenCached = true;
             } else {
                 mCacheRefCount--;
             }
@@ -61,11 +74,41 @@ public class RecyclingBitmapDrawable extends BitmapDrawable {
         checkState();
     }
 
+    /**
+     * Whether some view is displaying the drawable right now.
+     */
+    public synchronized boolean isDisplayed() {
+        return mDisplayRefCount > 0;
+    }
+
+    /**
+     * Counts a cache reference like {@code setIsCached(true)}, but only if the
+     * bitmap has not been returned to the pool or recycled yet.
+     *
+     * @return true if the drawable can be cached and displayed again
+     */
+    public synchronized boolean retain() {
+        if (mReleased || !hasValidBitmap()) {
+            return false;
+        }
+        mCacheRefCount++;
+        mHasBeenCached = true;
+        return true;
+    }
+
     private synchronized void checkState() {
-        // If the drawable cache and display ref counts = 0, and this drawable
-        // has been displayed, then recycle
-        if (mCacheRefCount <= 0 && mDisplayRefCount <= 0 && mHasBeenDisplayed
-                && hasValidBitmap()) {
+        if (mCacheRefCount > 0 || mDisplayRefCount > 0 || mReleased || !hasValidBitmap()) {
+            return;
+        }
+        if (mPool != null) {
+            // ûκεطʹ,ΪinBitmapͼƬ
+            if (mHasBeenDisplayed || mHasBeenCached) {
+                mReleased = true;
+                mPool.put(getBitmap());
+            }
+        } else if (mHasBeenDisplayed) {
+            // If the drawable cache and display ref counts = 0, and this drawable
+            // has been displayed, then recycle
             getBitmap().recycle();
         }
     }
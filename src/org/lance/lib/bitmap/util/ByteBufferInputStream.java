@@ -0,0 +1,68 @@
+package org.lance.lib.bitmap.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * ķʽȡByteBuffer(MappedByteBuffer),,֧mark/reset
+ * @author lance
+ *
+ */
+public class ByteBufferInputStream extends InputStream {
+	private final ByteBuffer mBuffer;
+
+	/**
+	 * @param buffer positionlimit,ȡıԭbufferλ
+	 */
+	public ByteBufferInputStream(ByteBuffer buffer) {
+		mBuffer = buffer.duplicate();
+	}
+
+	@Override
+	public int read() {
+		if (!mBuffer.hasRemaining()) {
+			return -1;
+		}
+		return mBuffer.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) {
+		if (length == 0) {
+			return 0;
+		}
+		if (!mBuffer.hasRemaining()) {
+			return -1;
+		}
+		int count = Math.min(length, mBuffer.remaining());
+		mBuffer.get(buffer, offset, count);
+		return count;
+	}
+
+	@Override
+	public long skip(long byteCount) {
+		int count = (int) Math.max(0, Math.min(byteCount, mBuffer.remaining()));
+		mBuffer.position(mBuffer.position() + count);
+		return count;
+	}
+
+	@Override
+	public int available() {
+		return mBuffer.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readLimit) {
+		mBuffer.mark();
+	}
+
+	@Override
+	public synchronized void reset() {
+		mBuffer.reset();
+	}
+}
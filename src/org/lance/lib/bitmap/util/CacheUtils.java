@@ -21,9 +21,21 @@ public class CacheUtils {
 	
 	private static final String TAG = "BitmapCommonUtils";
 	private static final long POLY64REV = 0x95AC9329AC4BC9B5L;
-    private static final long INITIALCRC = 0xFFFFFFFFFFFFFFFFL;
+    public static final long INITIALCRC = 0xFFFFFFFFFFFFFFFFL;
 
     private static long[] sCrcTable = new long[256];
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	//MessageDigest.getInstanceÿζҪṩ,̻߳
+	private static final ThreadLocal<MessageDigest> MD5_DIGEST = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				return null;
+			}
+		}
+	};
 	/**
 	 * ȡʹõĻĿ¼
 	 * @param context
@@ -143,8 +155,14 @@ public class CacheUtils {
     }
 
     public static final long crc64Long(byte[] buffer) {
-        long crc = INITIALCRC;
-        for (int k = 0, n = buffer.length; k < n; ++k) {
+        return crc64Update(INITIALCRC, buffer, 0, buffer.length);
+    }
+
+    /**
+     * crcĻϼbufferеһ,ڱ߶д߼,ʼֵΪINITIALCRC
+     */
+    public static final long crc64Update(long crc, byte[] buffer, int offset, int length) {
+        for (int k = offset, n = offset + length; k < n; ++k) {
             crc = sCrcTable[(((int) crc) ^ buffer[k]) & 0xff] ^ (crc >> 8);
         }
         return crc;
@@ -164,28 +182,25 @@ public class CacheUtils {
 	 * disk filename.
 	 */
 	public static String hashKeyForDisk(String key) {
-		String cacheKey;
-		try {
-			final MessageDigest mDigest = MessageDigest.getInstance("MD5");
-			mDigest.update(key.getBytes());
-			cacheKey = bytesToHexString(mDigest.digest());
-		} catch (NoSuchAlgorithmException e) {
-			cacheKey = String.valueOf(key.hashCode());
-		}
-		return cacheKey;
+		final byte[] digest = md5(key);
+		return digest != null ? bytesToHexString(digest) : String.valueOf(key.hashCode());
+	}
+
+	/**
+	 * ַMD5,ÿ̸߳һMessageDigest;֧MD5ʱnull
+	 */
+	public static byte[] md5(String key) {
+		final MessageDigest digest = MD5_DIGEST.get();
+		return digest != null ? digest.digest(key.getBytes()) : null;
 	}
 
-	private static String bytesToHexString(byte[] bytes) {
-		// http://stackoverflow.com/questions/332079
-		StringBuilder sb = new StringBuilder();
+	public static String bytesToHexString(byte[] bytes) {
+		final char[] chars = new char[bytes.length * 2];
 		for (int i = 0; i < bytes.length; i++) {
-			String hex = Integer.toHexString(0xFF & bytes[i]);
-			if (hex.length() == 1) {
-				sb.append('0');
-			}
-			sb.append(hex);
+			chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0x0F];
+			chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0x0F];
 		}
-		return sb.toString();
+		return new String(chars);
 	}
 
 	/**
@@ -0,0 +1,101 @@
+package org.lance.lib.bitmap.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class BlobStoreTest {
+    @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+    private File dir;
+    private BlobStore store;
+
+    @Before public void setUp() throws Exception {
+        dir = tempDir.newFolder("BlobStoreTest");
+        store = new BlobStore(dir);
+    }
+
+    @Test public void duplicateIsDroppedAndCountedAsShared() throws Exception {
+        File first = writeFile("k1.0.tmp", "abc");
+        File second = writeFile("k2.0.tmp", "abc");
+        assertEquals(3, store.store("id", first, 3));
+        assertFalse(first.exists());
+        assertTrue(store.getFile("id").exists());
+
+        assertEquals(0, store.store("id", second, 3));
+        assertFalse(second.exists());
+        assertTrue(store.contains("id"));
+        assertEquals(1, store.blobCount());
+        assertEquals(3, store.sharedBytes());
+    }
+
+    @Test public void lastReleaseDeletesBlob() throws Exception {
+        store.store("id", writeFile("k1.0.tmp", "abc"), 3);
+        store.store("id", writeFile("k2.0.tmp", "abc"), 3);
+        assertEquals(0, store.release("id", true));
+        assertTrue(store.getFile("id").exists());
+        assertEquals(0, store.sharedBytes());
+
+        assertEquals(3, store.release("id", true));
+        assertFalse(store.getFile("id").exists());
+        assertFalse(store.contains("id"));
+        assertEquals(0, store.blobCount());
+        assertEquals(0, store.release("id", true)); // already gone
+    }
+
+    @Test public void replayKeepsUnreferencedBlobsUntilDeleteUnreferenced() throws Exception {
+        writeFile(BlobStore.BLOB_FILE_PREFIX + "a", "abc");
+        writeFile(BlobStore.BLOB_FILE_PREFIX + "b", "de");
+        assertEquals(3, store.addReference("a", 3));
+        assertEquals(2, store.addReference("b", 2));
+        assertEquals(0, store.addReference("b", 2));
+        // a later record may refer to it again
+        assertEquals(3, store.release("a", false));
+        assertTrue(store.getFile("a").exists());
+
+        store.deleteUnreferenced();
+        assertFalse(store.getFile("a").exists());
+        assertTrue(store.getFile("b").exists());
+        assertTrue(store.isIntact("b", 2));
+        assertFalse(store.isIntact("b", 3));
+        assertFalse(store.isIntact("a", 3));
+    }
+
+    @Test public void fingerprintDependsOnContentOnly() throws Exception {
+        String abc = fingerprint("abc");
+        assertEquals(BlobStore.ID_BYTES * 2, abc.length());
+        assertTrue(abc.matches("[0-9a-f]+"));
+        assertEquals(abc, fingerprint("abc"));
+        assertNotEquals(abc, fingerprint("abd"));
+        assertNotEquals(abc, fingerprint(""));
+    }
+
+    private static String fingerprint(String content) throws IOException {
+        BlobStore.FingerprintOutputStream out =
+                new BlobStore.FingerprintOutputStream(new ByteArrayOutputStream());
+        byte[] bytes = content.getBytes(DiskLruCache.UTF_8);
+        // split the writes to check that they are fingerprinted as one
+        out.write(bytes, 0, bytes.length / 2);
+        out.write(bytes, bytes.length / 2, bytes.length - bytes.length / 2);
+        return out.id();
+    }
+
+    private File writeFile(String name, String content) throws IOException {
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content.getBytes(DiskLruCache.UTF_8));
+        out.close();
+        return file;
+    }
+}
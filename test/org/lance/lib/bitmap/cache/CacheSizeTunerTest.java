@@ -0,0 +1,169 @@
+package org.lance.lib.bitmap.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public final class CacheSizeTunerTest {
+    /** Sizes are in KB like CommonBitmapCache's; 2 to 64 MB in steps of 4 MB. */
+    private static final long MIN_SIZE = 2 * 1024;
+    private static final long MAX_SIZE = 64 * 1024;
+    private static final long STEP = MAX_SIZE / 16;
+    private static final int ENTRY_SIZE = 100;
+
+    @Test public void uniformWorkingSetSettlesNearItsSize() {
+        for (int seed = 1; seed <= 6; seed++) {
+            Simulation simulation = new Simulation(ENTRY_SIZE);
+            simulation.read(0, 30 * 1024 / ENTRY_SIZE, 0, 50000, new Random(seed));
+            long size = simulation.cache.maxSize();
+            // 30 MB rounded up to the next step, or one step more
+            assertTrue("seed " + seed + ": " + size, size == 8 * STEP || size == 9 * STEP);
+        }
+    }
+
+    @Test public void growsToTargetAtOnce() {
+        Simulation simulation = new Simulation(ENTRY_SIZE);
+        simulation.read(0, 30 * 1024 / ENTRY_SIZE, 0, 50000, new Random(2));
+        long[] first = simulation.resizes.get(0);
+        assertEquals(MIN_SIZE, first[0]);
+        // not one step at a time
+        assertTrue(first[1] - first[0] > 4 * STEP);
+        for (long[] resize : simulation.resizes) {
+            if (resize[1] > resize[0]) {
+                // the smaller target of the two decisions that agreed
+                assertTrue(resize[1] <= resize[2]);
+            }
+        }
+    }
+
+    @Test public void shrinksOneStepAtATime() {
+        Simulation simulation = new Simulation(ENTRY_SIZE);
+        Random random = new Random(3);
+        // a tenth of the reads are for new keys, so misses keep the tuner deciding
+        simulation.read(0, 30 * 1024 / ENTRY_SIZE, 10, 30000, random);
+        long size = simulation.cache.maxSize();
+        assertTrue(size > 8 * STEP);
+        simulation.resizes.clear();
+
+        // the working set drops to 5 MB
+        simulation.read(1000, 1000 + 5 * 1024 / ENTRY_SIZE, 10, 20000, random);
+        int shrinks = 0;
+        for (long[] resize : simulation.resizes) {
+            assertEquals(size, resize[0]);
+            if (resize[1] < resize[0]) {
+                assertTrue(resize[0] - resize[1] <= STEP);
+                assertTrue(resize[1] >= resize[2]);
+                shrinks++;
+            }
+            size = resize[1];
+        }
+        assertTrue(shrinks >= 6);
+        assertTrue(simulation.cache.maxSize() <= 3 * STEP);
+    }
+
+    @Test public void steadyWorkloadKeepsItsSize() {
+        Simulation simulation = new Simulation(ENTRY_SIZE);
+        Random random = new Random(4);
+        simulation.read(0, 30 * 1024 / ENTRY_SIZE, 10, 20000, random);
+        simulation.resizes.clear();
+        long settled = simulation.cache.maxSize();
+
+        // about 100 decisions with the gain of the last step close to the minimum
+        simulation.read(0, 30 * 1024 / ENTRY_SIZE, 10, 60000, random);
+        assertTrue("resized " + simulation.resizes.size() + " times",
+                simulation.resizes.size() <= 12);
+        for (long[] resize : simulation.resizes) {
+            assertTrue(Math.abs(resize[1] - settled) <= STEP);
+        }
+    }
+
+    @Test public void ghostStampsStayBounded() {
+        // small entries, so that the ghost count bound is hit before the range
+        Simulation simulation = new Simulation(1);
+        for (int key = 0; key < 50000; key++) {
+            simulation.read(key); // a scan never reuses a key
+        }
+        long cached = simulation.cache.hotKeys(Integer.MAX_VALUE).size();
+        assertTrue(simulation.tuner.stampCount() <= cached + 4096);
+        assertEquals(0, simulation.tuner.ghostHitCount());
+
+        // large entries leave the reuse range before the count bound
+        simulation = new Simulation(ENTRY_SIZE);
+        for (int key = 0; key < 50000; key++) {
+            simulation.read(key);
+        }
+        cached = simulation.cache.hotKeys(Integer.MAX_VALUE).size();
+        long range = MAX_SIZE * 4 / ENTRY_SIZE;
+        assertTrue(simulation.tuner.stampCount() <= cached + range + 1);
+    }
+
+    /**
+     * A memory cache wired to a tuner the way CommonBitmapCache does it: a
+     * miss is followed by a put, and the put asks the tuner for a size.
+     */
+    private static final class Simulation {
+        final CacheSizeTuner<Integer> tuner = new CacheSizeTuner<Integer>(MIN_SIZE, MAX_SIZE,
+                0.002f);
+        final StripedLruCache<Integer, Integer> cache;
+        final int entrySize;
+        private int nextFreshKey = Integer.MAX_VALUE / 2;
+        /** Every resize as {from, to, target}. */
+        final List<long[]> resizes = new ArrayList<long[]>();
+
+        Simulation(final int entrySize) {
+            this.entrySize = entrySize;
+            cache = new StripedLruCache<Integer, Integer>(MIN_SIZE, 4) {
+                @Override protected void entryRemoved(boolean evicted, Integer key,
+                        Integer oldValue, Integer newValue) {
+                    if (newValue == null) {
+                        if (evicted) {
+                            tuner.recordEviction(key);
+                        } else {
+                            tuner.recordRemoval(key);
+                        }
+                    }
+                }
+
+                @Override protected int sizeOf(Integer key, Integer value) {
+                    return entrySize;
+                }
+            };
+        }
+
+        /**
+         * Reads keys drawn uniformly from {@code firstKey} until
+         * {@code endKey}, and a key never read before for
+         * {@code freshPercent} of the reads.
+         */
+        void read(int firstKey, int endKey, int freshPercent, int count, Random random) {
+            for (int i = 0; i < count; i++) {
+                if (random.nextInt(100) < freshPercent) {
+                    read(nextFreshKey++);
+                } else {
+                    read(firstKey + random.nextInt(endKey - firstKey));
+                }
+            }
+        }
+
+        void read(int key) {
+            if (cache.get(key) != null) {
+                tuner.recordHit(key);
+                return;
+            }
+            tuner.recordMiss(key);
+            tuner.recordPut(key, entrySize);
+            cache.put(key, key);
+            long current = cache.maxSize();
+            long tuned = tuner.tune(current);
+            if (tuned > 0) {
+                resizes.add(new long[] {current, tuned, tuner.lastTarget()});
+                cache.resize(tuned);
+            }
+        }
+    }
+}
@@ -0,0 +1,812 @@
+package org.lance.lib.bitmap.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs on a plain JVM; the cache package doesn't use the Android runtime.
+ */
+public final class DiskLruCacheTest {
+    private static final int APP_VERSION = 100;
+
+    @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+    private File cacheDir;
+    private File journalFile;
+    private File checkpointFile;
+    private DiskLruCache cache;
+
+    @Before public void setUp() throws Exception {
+        cacheDir = tempDir.newFolder("DiskLruCacheTest");
+        journalFile = new File(cacheDir, DiskLruCache.JOURNAL_FILE);
+        checkpointFile = new File(cacheDir, DiskLruCache.CHECKPOINT_FILE);
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE);
+    }
+
+    @After public void tearDown() throws Exception {
+        cache.close();
+    }
+
+    @Test public void journalStartsWithBinaryHeader() throws Exception {
+        cache.close();
+        DataInputStream in = new DataInputStream(new FileInputStream(journalFile));
+        try {
+            assertEquals(BinaryJournal.MAGIC, in.readInt());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test public void journalRoundTripWithoutCheckpoint() throws Exception {
+        // hex keys are stored packed, the others as UTF-8
+        set("0a1b2c3d", "a", "bb");
+        set("k1", "ccc", "dddd");
+        set("k2", "e", "f");
+        assertTrue(cache.remove("k2"));
+        set("0a1b2c3d", "gg", "h");
+        assertValue("k1", "ccc", "dddd");
+        cache.close();
+
+        assertTrue(checkpointFile.delete());
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE);
+        assertValue("0a1b2c3d", "gg", "h");
+        assertValue("k1", "ccc", "dddd");
+        assertAbsent("k2");
+        assertEquals(3 + 7, cache.size());
+    }
+
+    @Test public void journalRoundTripWithCheckpoint() throws Exception {
+        set("k1", "a", "bb");
+        set("k2", "ccc", "dddd");
+        cache.close();
+        assertTrue(checkpointFile.exists());
+
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE);
+        assertTrue(cache.remove("k1"));
+        set("k3", "e", "f");
+        cache.close();
+
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE);
+        assertAbsent("k1");
+        assertValue("k2", "ccc", "dddd");
+        assertValue("k3", "e", "f");
+        assertEquals(7 + 2, cache.size());
+    }
+
+    @Test public void tornRecordAtTailIsDropped() throws Exception {
+        set("k1", "a", "bb");
+        cache.close();
+        OutputStream out = new FileOutputStream(journalFile, true);
+        out.write(BinaryJournal.OP_CLEAN); // the key and lengths never made it
+        out.close();
+
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE);
+        assertValue("k1", "a", "bb");
+        set("k2", "ccc", "d");
+        cache.close();
+
+        // the new record must not have been appended after the torn one
+        assertTrue(checkpointFile.delete());
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE);
+        assertValue("k1", "a", "bb");
+        assertValue("k2", "ccc", "d");
+    }
+
+    @Test public void legacyJournalIsMigrated() throws Exception {
+        cache.close();
+        DiskLruCache.deleteContents(cacheDir);
+        writeFile(new File(cacheDir, DiskLruCache.JOURNAL_FILE_LEGACY),
+                DiskLruCache.MAGIC + "\n" + DiskLruCache.VERSION_1 + "\n" + APP_VERSION + "\n2\n\n"
+                + "DIRTY k1\nCLEAN k1 1 2\nREAD k1\n");
+        writeFile(new File(cacheDir, "k1.0"), "a");
+        writeFile(new File(cacheDir, "k1.1"), "bb");
+
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE);
+        assertValue("k1", "a", "bb");
+        assertFalse(new File(cacheDir, DiskLruCache.JOURNAL_FILE_LEGACY).exists());
+        assertTrue(journalFile.exists());
+    }
+
+    @Test public void corruptCheckpointFallsBackToReplay() throws Exception {
+        set("k1", "a", "bb");
+        set("k2", "ccc", "dddd");
+        assertTrue(cache.remove("k1"));
+        cache.close();
+        byte[] checkpoint = readFile(checkpointFile);
+        checkpoint[checkpoint.length - 1] ^= 1; // breaks the CRC
+        writeFile(checkpointFile, checkpoint);
+
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE);
+        assertAbsent("k1");
+        assertValue("k2", "ccc", "dddd");
+        assertEquals(7, cache.size());
+    }
+
+    @Test public void rejectedCheckpointDoesNotLeakBlobReferences() throws Exception {
+        cache.close();
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.dedup = true;
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE, options);
+        set("k1", "aa", "bbb");
+        set("k2", "aa", "bbb");
+        assertEquals(2, cache.blobCount());
+        assertEquals(5, cache.size());
+        cache.close();
+        // a valid CRC over a header that doesn't match the records is only
+        // noticed after every record has taken its blob references
+        rewriteCheckpointSize(1);
+
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE, options);
+        assertEquals(5, cache.size());
+        assertEquals(2, cache.blobCount());
+        assertEquals(5, cache.dedupSavedBytes());
+        assertTrue(cache.remove("k1"));
+        assertTrue(cache.remove("k2"));
+        assertEquals(0, cache.blobCount());
+        assertEquals(0, cache.size());
+        for (String name : cacheDir.list()) {
+            assertFalse(name, name.startsWith(BlobStore.BLOB_FILE_PREFIX));
+        }
+    }
+
+    @Test public void packedValuesSurviveCompaction() throws Exception {
+        cache.close();
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.packed = true;
+        options.packFileSize = 24; // three entries of 4 + 4 bytes per pack
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE, options);
+        for (int i = 0; i < 9; i++) {
+            set("k" + i, "aaa" + i, "bbb" + i);
+        }
+        assertTrue(cache.remove("k0"));
+        assertTrue(cache.remove("k1"));
+        assertTrue(cache.remove("k3"));
+        assertTrue(cache.remove("k4"));
+        // the next commit notices packs 0 and 1 are mostly dead
+        set("k9", "aaa9", "bbb9");
+        awaitDeleted(new File(cacheDir, PackFileStore.PACK_FILE_PREFIX + 0));
+        awaitDeleted(new File(cacheDir, PackFileStore.PACK_FILE_PREFIX + 1));
+
+        for (int i : new int[] {2, 5, 6, 7, 8, 9}) {
+            assertValue("k" + i, "aaa" + i, "bbb" + i);
+        }
+        assertEquals(6 * 8, cache.size());
+        cache.close();
+
+        assertTrue(checkpointFile.delete());
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE, options);
+        for (int i : new int[] {2, 5, 6, 7, 8, 9}) {
+            assertValue("k" + i, "aaa" + i, "bbb" + i);
+        }
+        assertEquals(6 * 8, cache.size());
+        assertFalse(new File(cacheDir, PackFileStore.PACK_FILE_PREFIX + 0).exists());
+        assertFalse(new File(cacheDir, PackFileStore.PACK_FILE_PREFIX + 1).exists());
+    }
+
+    @Test public void groupCommittedRecordsSurviveClose() throws Exception {
+        cache.close();
+        DiskLruCache.Options options = groupCommitOptions();
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE, options);
+        set("k1", "a", "bb");
+        set("k2", "ccc", "d");
+        assertTrue(cache.remove("k1"));
+        cache.close();
+
+        assertTrue(checkpointFile.delete());
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE, options);
+        assertAbsent("k1");
+        assertValue("k2", "ccc", "d");
+    }
+
+    @Test public void filesOfLostRecordsAreDeletedAfterCrash() throws Exception {
+        set("k1", "a", "bb");
+        cache.close();
+        DiskLruCache.Options options = groupCommitOptions();
+        // never closed, as if the process died before the batch was written
+        DiskLruCache crashed = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE,
+                options);
+        DiskLruCache.Editor editor = crashed.edit("k2");
+        editor.set(0, "ccc");
+        editor.set(1, "dddd");
+        editor.commit();
+        crashed.edit("k3").set(0, "e"); // dirty file of an edit in progress
+        writeFile(new File(cacheDir, BlobStore.BLOB_FILE_PREFIX + "0123456789abcdef0123456789abcdef"),
+                "ff");
+        writeFile(new File(cacheDir, "k4.0.tmp"), "g");
+        assertTrue(new File(cacheDir, "k2.0").exists());
+
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE, options);
+        assertValue("k1", "a", "bb");
+        assertAbsent("k2");
+        assertAbsent("k3");
+        assertEquals(3, cache.size());
+        Set<String> names = new HashSet<String>(Arrays.asList(cacheDir.list()));
+        names.remove(DiskLruCache.JOURNAL_FILE);
+        names.remove(DiskLruCache.CHECKPOINT_FILE);
+        assertEquals(new HashSet<String>(Arrays.asList("k1.0", "k1.1")), names);
+    }
+
+    @Test public void blobsOfLostRecordsAreDeletedAfterCrash() throws Exception {
+        cache.close();
+        DiskLruCache.Options options = groupCommitOptions();
+        options.dedup = true;
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE, options);
+        set("k1", "a", "bb");
+        cache.close();
+        DiskLruCache crashed = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE,
+                options);
+        DiskLruCache.Editor editor = crashed.edit("k2");
+        editor.set(0, "a"); // shares the blob of k1
+        editor.set(1, "ccc");
+        editor.commit();
+        assertEquals(3, blobFileCount());
+
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE, options);
+        assertValue("k1", "a", "bb");
+        assertAbsent("k2");
+        assertEquals(2, cache.blobCount());
+        assertEquals(2, blobFileCount());
+        assertEquals(3, cache.size());
+    }
+
+    @Test public void clockCheckpointIsWrittenInBackground() throws Exception {
+        cache.close();
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.clock = true;
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE, options);
+        set("k1", "a", "bb");
+        set("k2", "ccc", "d");
+        for (int i = 0; i < 2000; i++) {
+            cache.get("k1").close();
+        }
+        // two CLEAN records and a READ of the referenced entry
+        awaitCheckpointRecords(3);
+        assertFalse(new File(cacheDir, DiskLruCache.CHECKPOINT_FILE_BACKGROUND_TMP).exists());
+
+        // open a second instance over the running one, as after a crash
+        DiskLruCache reopened = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE,
+                options);
+        try {
+            assertTrue("checkpoint was rejected", checkpointFile.exists());
+            assertEquals(7, reopened.size());
+            assertEquals("bb", reopened.get("k1").getString(1));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test public void compactionWritesCheckpointOfNewJournal() throws Exception {
+        set("k1", "a", "bb");
+        set("k2", "ccc", "d");
+        for (int i = 0; i < 2000; i++) {
+            cache.get("k1").close();
+        }
+        awaitCheckpointRecords(2);
+        assertFalse(new File(cacheDir, DiskLruCache.CHECKPOINT_FILE_BACKGROUND_TMP).exists());
+        assertFalse(new File(cacheDir, DiskLruCache.JOURNAL_FILE_TMP).exists());
+        assertTrue(journalFile.length() < 2000); // the READ records are gone
+        assertTrue(readCheckpointHeader()[3] <= journalFile.length());
+
+        DiskLruCache reopened = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE);
+        try {
+            assertTrue("checkpoint was rejected", checkpointFile.exists());
+            assertEquals(7, reopened.size());
+            assertEquals("d", reopened.get("k2").getString(1));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test public void admissionRejectsEntriesLessPopularThanVictim() throws Exception {
+        cache.close();
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.admission = true;
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, 10, options);
+        set("k1", "aaa", "bb");
+        for (int i = 0; i < 3; i++) {
+            cache.get("k1").close();
+        }
+        set("k2", "ccc", "dd"); // would push k1 out
+        assertAbsent("k2");
+        assertValue("k1", "aaa", "bb");
+        assertEquals(1, cache.rejectedAdmissionCount());
+
+        // misses count too, so a key that keeps being asked for gets in
+        for (int i = 0; i < 3; i++) {
+            assertAbsent("k2");
+        }
+        set("k2", "ccc", "dd");
+        assertValue("k2", "ccc", "dd");
+        assertEquals(1, cache.rejectedAdmissionCount());
+    }
+
+    @Test public void identicalValuesShareOneBlob() throws Exception {
+        cache.close();
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.dedup = true;
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE, options);
+        set("k1", "aa", "bbb");
+        set("k2", "aa", "bbb");
+        set("k3", "aa", "c");
+        assertEquals(3, cache.blobCount());
+        assertEquals(3, blobFileCount());
+        assertEquals(6, cache.size());
+        assertEquals(7, cache.dedupSavedBytes());
+        assertTrue(cache.remove("k1"));
+        assertValue("k2", "aa", "bbb");
+        assertEquals(3, blobFileCount());
+        cache.close();
+
+        assertTrue(checkpointFile.delete());
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE, options);
+        assertEquals(6, cache.size());
+        assertEquals(2, cache.dedupSavedBytes());
+        assertTrue(cache.remove("k2"));
+        assertEquals(2, blobFileCount());
+        assertTrue(cache.remove("k3"));
+        assertEquals(0, blobFileCount());
+        assertEquals(0, cache.size());
+    }
+
+    @Test public void lazyOpenDedupReadWaitsForIndex() throws Exception {
+        cache.close();
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.dedup = true;
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE, options);
+        set("k1", "aa", "bbb");
+        cache.close();
+
+        options.lazyOpen = true;
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE, options);
+        assertValue("k1", "aa", "bbb");
+    }
+
+    @Test public void commitAboveHighWatermarkTrimsToLowWatermark() throws Exception {
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, 100, new DiskLruCache.Options());
+        for (int i = 0; i < 10; i++) {
+            set("k" + i, "aaaa" + i, "bbbb" + i); // 10 bytes each
+        }
+        assertEquals(100, cache.size());
+        assertEquals(0, cache.evictionCount());
+
+        // 110 bytes; trimmed to the low watermark of 90, not just to 100
+        set("k10", "aaaa", "bbbbbb");
+        awaitSize(90);
+        assertAbsent("k0");
+        assertAbsent("k1");
+        assertValue("k2", "aaaa2", "bbbb2");
+        assertValue("k10", "aaaa", "bbbbbb");
+        assertEquals(2, cache.evictionCount());
+        assertEquals(20, cache.evictedBytes());
+        assertTrue(cache.lastTrimLagMillis() >= 0);
+    }
+
+    @Test public void trimSkipsEntriesBeingEdited() throws Exception {
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, 100, new DiskLruCache.Options());
+        for (int i = 0; i < 10; i++) {
+            set("k" + i, "aaaa" + i, "bbbb" + i);
+        }
+        DiskLruCache.Editor editor = cache.edit("k0");
+        set("k10", "aaaa", "bbbbbb");
+        awaitSize(90);
+        assertValue("k0", "aaaa0", "bbbb0");
+        assertAbsent("k1");
+        assertAbsent("k2");
+        assertEquals(2, cache.evictionCount());
+        editor.abort();
+    }
+
+    @Test(timeout = 10000)
+    public void trimGivesUpWhenOnlyEditedEntriesAreLeft() throws Exception {
+        cache.close();
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, 10, new DiskLruCache.Options());
+        set("k0", "aaaaa", "bbbbb");
+        DiskLruCache.Editor editor = cache.edit("k0");
+        set("k1", "ccccc", "ddddd");
+        // k1 goes; k0 alone is still above the low watermark of 9
+        awaitAbsent("k1");
+        assertEquals(10, cache.size());
+        assertEquals(1, cache.evictionCount());
+
+        // the cache is still usable, so the cleanup thread isn't spinning
+        editor.set(0, "e");
+        editor.set(1, "f");
+        editor.commit();
+        assertValue("k0", "e", "f");
+        assertEquals(2, cache.size());
+    }
+
+    @Test public void closeTrimsToMaxSize() throws Exception {
+        cache.close();
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.trimHighWatermark = 2.0f;
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, 100, options);
+        for (int i = 10; i < 25; i++) {
+            set("k" + i, "aaa" + i, "bbb" + i);
+        }
+        // below the high watermark, so nothing is trimmed in the background
+        assertEquals(150, cache.size());
+        cache.close();
+        assertEquals(5, cache.evictionCount());
+        assertEquals(50, cache.evictedBytes());
+
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, 100, options);
+        assertEquals(100, cache.size());
+        assertAbsent("k14");
+        assertValue("k15", "aaa15", "bbb15");
+    }
+
+    @Test public void lazyOpenReadsValueFilesBeforeIndex() throws Exception {
+        set("k1", "aa", "bbb");
+        cache.close();
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.lazyOpen = true;
+        options.indexGate = new CountDownLatch(1);
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE, options);
+
+        DiskLruCache.Snapshot snapshot = cache.get("k1");
+        assertEquals("aa", snapshot.getString(0));
+        assertEquals("bbb", snapshot.getString(1));
+        assertEquals(3, snapshot.getLength(1));
+        assertNull(cache.get("k2"));
+
+        options.indexGate.countDown();
+        // waits for the index, then can't match the read to an entry
+        assertNull(snapshot.edit());
+        snapshot.close();
+        snapshot = cache.get("k1");
+        DiskLruCache.Editor editor = snapshot.edit();
+        assertNotNull(editor);
+        editor.abort();
+        snapshot.close();
+    }
+
+    @Test public void lazyOpenDoesNotReadKeyWhoseCommitWasCutShort() throws Exception {
+        set("k1", "aa", "bbb");
+        set("k2", "c", "dd");
+        cache.close();
+        // the commit renamed the first value and died before the second
+        writeFile(new File(cacheDir, "k1.0"), "xx");
+        writeFile(new File(cacheDir, "k1.1.tmp"), "yyy");
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.lazyOpen = true;
+        options.indexGate = new CountDownLatch(1);
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE, options);
+
+        assertAbsent("k1");
+        assertValue("k2", "c", "dd");
+        options.indexGate.countDown();
+    }
+
+    @Test public void lazyOpenMutationsWaitForIndex() throws Exception {
+        set("k1", "aa", "bbb");
+        set("k2", "c", "dd");
+        cache.close();
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.lazyOpen = true;
+        options.indexGate = new CountDownLatch(1);
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE, options);
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            Future<Long> size = executor.submit(new Callable<Long>() {
+                @Override public Long call() throws Exception {
+                    return cache.size();
+                }
+            });
+            Future<Boolean> remove = executor.submit(new Callable<Boolean>() {
+                @Override public Boolean call() throws Exception {
+                    return cache.remove("k1");
+                }
+            });
+            Future<DiskLruCache.Editor> edit = executor.submit(
+                    new Callable<DiskLruCache.Editor>() {
+                        @Override public DiskLruCache.Editor call() throws Exception {
+                            return cache.edit("k3");
+                        }
+                    });
+            Thread.sleep(200);
+            assertFalse(size.isDone());
+            assertFalse(remove.isDone());
+            assertFalse(edit.isDone());
+
+            options.indexGate.countDown();
+            long sizeBeforeOrAfterRemove = size.get(5, TimeUnit.SECONDS);
+            assertTrue(sizeBeforeOrAfterRemove == 8 || sizeBeforeOrAfterRemove == 3);
+            assertTrue(remove.get(5, TimeUnit.SECONDS));
+            DiskLruCache.Editor editor = edit.get(5, TimeUnit.SECONDS);
+            editor.set(0, "e");
+            editor.set(1, "ff");
+            editor.commit();
+        } finally {
+            executor.shutdown();
+        }
+        assertAbsent("k1");
+        assertValue("k3", "e", "ff");
+        assertEquals(6, cache.size());
+    }
+
+    @Test public void corruptRecordKeepsPrefixAndSalvagesFiles() throws Exception {
+        set("k1", "a", "bb");
+        set("k2", "ccc", "dddd");
+        cache.flush();
+        long corruptAt = journalFile.length();
+        set("k3", "e", "f");
+        set("k4", "gg", "hh");
+        set("k5", "iii", "jjj");
+        cache.close();
+        assertTrue(checkpointFile.delete());
+        RandomAccessFile journal = new RandomAccessFile(journalFile, "rw");
+        journal.seek(corruptAt);
+        journal.write(0x7F); // not an op
+        journal.close();
+
+        // what the lost records left behind
+        long now = System.currentTimeMillis();
+        writeFile(new File(cacheDir, "k2.1"), "DDDDD");
+        setLastModified("k5", now - 30000);
+        setLastModified("k4", now - 20000);
+        setLastModified("k3", now - 10000);
+        setLastModified("k2", now);
+        writeFile(new File(cacheDir, "k6.0"), "g");
+        writeFile(new File(cacheDir, "k7.0.tmp"), "h");
+        writeFile(new File(cacheDir, "k7.1.tmp"), "i");
+
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE);
+        // the intact prefix first, then the recovered sets, eldest first
+        assertEquals(Arrays.asList("k1", "k5", "k4", "k3", "k2"), journalKeys());
+        assertValue("k1", "a", "bb");
+        assertValue("k2", "ccc", "DDDDD");
+        assertValue("k3", "e", "f");
+        assertValue("k4", "gg", "hh");
+        assertValue("k5", "iii", "jjj");
+        assertAbsent("k6");
+        assertAbsent("k7");
+        assertFalse(new File(cacheDir, "k6.0").exists());
+        assertFalse(new File(cacheDir, "k7.0.tmp").exists());
+        assertFalse(new File(cacheDir, "k7.1.tmp").exists());
+        assertEquals(3 + 8 + 2 + 4 + 6, cache.size());
+    }
+
+    @Test public void salvageDropsDirtyPrefixEntryWithoutItsFiles() throws Exception {
+        set("k1", "a", "bb");
+        cache.flush();
+        DiskLruCache.Editor editor = cache.edit("k2");
+        editor.set(0, "c");
+        cache.flush();
+        long corruptAt = journalFile.length();
+        editor.abort();
+        set("k3", "d", "e");
+        cache.close();
+        assertTrue(checkpointFile.delete());
+        RandomAccessFile journal = new RandomAccessFile(journalFile, "rw");
+        journal.seek(corruptAt);
+        journal.write(0x7F);
+        journal.close();
+        // the edit of k2 died after writing its first value
+        writeFile(new File(cacheDir, "k2.0.tmp"), "c");
+
+        cache = DiskLruCache.open(cacheDir, APP_VERSION, 2, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList("k1", "k3"), journalKeys());
+        assertAbsent("k2");
+        assertFalse(new File(cacheDir, "k2.0.tmp").exists());
+        assertEquals(3 + 2, cache.size());
+    }
+
+    private void set(String key, String a, String b) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, a);
+        editor.set(1, b);
+        editor.commit();
+    }
+
+    private void assertValue(String key, String a, String b) throws IOException {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        try {
+            assertEquals(a, snapshot.getString(0));
+            assertEquals(a.length(), snapshot.getLength(0));
+            assertEquals(b, snapshot.getString(1));
+            assertEquals(b.length(), snapshot.getLength(1));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private void assertAbsent(String key) throws IOException {
+        assertNull(cache.get(key));
+    }
+
+    /** Group commit that only writes the journal on close. */
+    private static DiskLruCache.Options groupCommitOptions() {
+        DiskLruCache.Options options = new DiskLruCache.Options();
+        options.groupCommitIntervalMillis = 60 * 1000;
+        options.groupCommitRecords = 1000;
+        return options;
+    }
+
+    private int blobFileCount() {
+        int count = 0;
+        for (String name : cacheDir.list()) {
+            if (name.startsWith(BlobStore.BLOB_FILE_PREFIX)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Waits for a background checkpoint of {@code recordCount} records. */
+    private void awaitCheckpointRecords(long recordCount) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            long[] header = readCheckpointHeader();
+            if (header != null && header[5] == recordCount) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("no checkpoint of " + recordCount + " records");
+    }
+
+    /**
+     * Returns the version, appVersion, valueCount, journalOffset, size and
+     * record count of the checkpoint, or null if there is none.
+     */
+    private long[] readCheckpointHeader() throws IOException {
+        if (!checkpointFile.exists()) {
+            return null;
+        }
+        byte[] checkpoint = readFile(checkpointFile);
+        int[] position = {4};
+        long[] header = new long[6];
+        for (int i = 0; i < header.length; i++) {
+            header[i] = readVarint(checkpoint, position);
+        }
+        return header;
+    }
+
+    private void setLastModified(String key, long time) {
+        for (int i = 0; i < 2; i++) {
+            assertTrue(new File(cacheDir, key + "." + i).setLastModified(time));
+        }
+    }
+
+    /** The keys of the journal's CLEAN records in order. */
+    private List<String> journalKeys() throws IOException {
+        InputStream in = new FileInputStream(journalFile);
+        try {
+            BinaryJournal.Reader reader = new BinaryJournal.Reader(in, 8192, 2);
+            reader.readHeader(APP_VERSION);
+            List<String> keys = new ArrayList<String>();
+            while (reader.next()) {
+                if (reader.op == BinaryJournal.OP_CLEAN) {
+                    keys.add(reader.key);
+                }
+            }
+            return keys;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Waits for the background trim to bring the size down to {@code max}. */
+    private void awaitSize(long max) throws InterruptedException {
+        for (int i = 0; i < 100 && cache.size() > max; i++) {
+            Thread.sleep(50);
+        }
+        assertTrue("size " + cache.size(), cache.size() <= max);
+    }
+
+    /** Waits for the background trim to evict {@code key}. */
+    private void awaitAbsent(String key) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            DiskLruCache.Snapshot snapshot = cache.get(key);
+            if (snapshot == null) {
+                return;
+            }
+            snapshot.close();
+            Thread.sleep(50);
+        }
+        throw new AssertionError(key + " wasn't evicted");
+    }
+
+    /** Waits for the background cleanup to delete {@code file}. */
+    private static void awaitDeleted(File file) throws InterruptedException {
+        for (int i = 0; i < 100 && file.exists(); i++) {
+            Thread.sleep(50);
+        }
+        assertFalse(file + " still exists", file.exists());
+    }
+
+    /**
+     * Adds {@code delta} to the size recorded in the checkpoint and fixes up
+     * its CRC: magic, varints version, appVersion, valueCount, journalOffset
+     * and size, then the records.
+     */
+    private void rewriteCheckpointSize(long delta) throws IOException {
+        byte[] checkpoint = readFile(checkpointFile);
+        int[] position = {4};
+        for (int i = 0; i < 4; i++) {
+            readVarint(checkpoint, position);
+        }
+        int sizeStart = position[0];
+        long size = readVarint(checkpoint, position);
+        int sizeEnd = position[0];
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(checkpoint, 0, sizeStart);
+        BinaryJournal.writeVarint(out, size + delta);
+        out.write(checkpoint, sizeEnd, checkpoint.length - 4 - sizeEnd);
+        CRC32 crc = new CRC32();
+        crc.update(out.toByteArray());
+        BinaryJournal.writeInt(out, (int) crc.getValue());
+        writeFile(checkpointFile, out.toByteArray());
+    }
+
+    private static long readVarint(byte[] bytes, int[] position) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = bytes[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeFile(File file, byte[] content) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), DiskLruCache.UTF_8);
+        writer.write(content);
+        writer.close();
+    }
+}
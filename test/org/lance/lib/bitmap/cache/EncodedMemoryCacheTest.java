@@ -0,0 +1,103 @@
+package org.lance.lib.bitmap.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public final class EncodedMemoryCacheTest {
+    @Test public void getReturnsCopyOfPutBytes() {
+        EncodedMemoryCache cache = new EncodedMemoryCache(100);
+        ByteBuffer value = value(1, 12);
+        value.position(2);
+        assertTrue(cache.put("a", value));
+        assertEquals(2, value.position());
+
+        ByteBuffer cached = cache.get("a");
+        assertEquals(10, cached.remaining());
+        assertEquals(value, cached);
+        cached.put(0, (byte) 0);
+        assertEquals(value, cache.get("a"));
+        assertEquals(10, cache.size());
+        assertEquals(1, cache.count());
+    }
+
+    @Test public void valueTooLargeIsNotCached() {
+        EncodedMemoryCache cache = new EncodedMemoryCache(80);
+        assertTrue(cache.put("a", value(1, 10)));
+        assertFalse(cache.put("a", value(2, 11)));
+        // the older value must not be served instead
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test public void ringOverwritesEldestValues() {
+        EncodedMemoryCache cache = new EncodedMemoryCache(100);
+        for (int i = 0; i < 8; i++) {
+            cache.put("k" + i, value(i, 12));
+        }
+        assertEquals(96, cache.size());
+        // doesn't fit at the end, so the write wraps around over k0
+        cache.put("k8", value(8, 12));
+        assertNull(cache.get("k0"));
+        assertEquals(1, cache.evictionCount());
+        assertEquals(8, cache.count());
+        assertEquals(96, cache.size());
+        assertEquals(value(7, 12), cache.get("k7"));
+    }
+
+    @Test public void valueReadBeforeItIsOverwrittenIsKept() {
+        EncodedMemoryCache cache = new EncodedMemoryCache(100);
+        for (int i = 0; i < 8; i++) {
+            cache.put("k" + i, value(i, 12));
+        }
+        assertNotNull(cache.get("k0"));
+        assertEquals(1, cache.promotionCount());
+        cache.put("k8", value(8, 12));
+        cache.put("k9", value(9, 12));
+
+        assertEquals(value(0, 12), cache.get("k0"));
+        assertNull(cache.get("k1"));
+        assertNull(cache.get("k2"));
+        assertEquals(value(3, 12), cache.get("k3"));
+    }
+
+    @Test public void replacingValueFreesOldBytes() {
+        EncodedMemoryCache cache = new EncodedMemoryCache(100);
+        cache.put("a", value(1, 12));
+        cache.put("a", value(2, 6));
+        assertEquals(6, cache.size());
+        assertEquals(value(2, 6), cache.get("a"));
+        cache.remove("a");
+        assertEquals(0, cache.size());
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+    }
+
+    @Test public void evictAllEmptiesCache() {
+        EncodedMemoryCache cache = new EncodedMemoryCache(100);
+        cache.put("a", value(1, 12));
+        cache.put("b", value(2, 12));
+        cache.evictAll();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.count());
+        assertNull(cache.get("a"));
+        cache.put("c", value(3, 12));
+        assertEquals(value(3, 12), cache.get("c"));
+    }
+
+    /** {@code length} bytes counting up from {@code seed}. */
+    private static ByteBuffer value(int seed, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (seed + i);
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+}
@@ -0,0 +1,54 @@
+package org.lance.lib.bitmap.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public final class FrequencySketchTest {
+    @Test public void unseenKeyHasNoFrequency() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        assertEquals(0, sketch.frequency("a"));
+    }
+
+    @Test public void incrementCountsRequests() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 1; i <= 5; i++) {
+            sketch.increment("a");
+            assertEquals(i, sketch.frequency("a"));
+        }
+    }
+
+    @Test public void frequencySaturates() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment("a");
+        }
+        assertEquals(15, sketch.frequency("a"));
+    }
+
+    @Test public void countersAreHalvedAfterSample() {
+        // 16 entries give a table of 16 longs and a sample of 160 increments
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 15; i++) {
+            sketch.increment("hot");
+        }
+        assertEquals(15, sketch.frequency("hot"));
+        for (int i = 0; i < 145; i++) {
+            sketch.increment("cold" + i);
+        }
+        int frequency = sketch.frequency("hot");
+        assertTrue("frequency " + frequency, frequency >= 7 && frequency < 15);
+    }
+
+    @Test public void popularKeyOutranksOneHitWonders() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        for (int i = 0; i < 1000; i++) {
+            sketch.increment("hot");
+            sketch.increment("cold" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(sketch.frequency("hot") > sketch.frequency("cold" + i));
+        }
+    }
+}
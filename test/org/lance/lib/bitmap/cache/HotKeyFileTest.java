@@ -0,0 +1,97 @@
+package org.lance.lib.bitmap.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class HotKeyFileTest {
+    @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+    private File cacheDir;
+    private HotKeyFile hotKeys;
+
+    @Before public void setUp() throws Exception {
+        cacheDir = tempDir.newFolder("HotKeyFileTest");
+        hotKeys = new HotKeyFile(cacheDir);
+    }
+
+    @Test public void fileIsOutsideDiskCacheDirectory() {
+        assertEquals(cacheDir.getAbsoluteFile().getParentFile(),
+                hotKeys.getFile().getParentFile());
+        assertTrue(hotKeys.getFile().getName().startsWith(cacheDir.getName()));
+    }
+
+    @Test public void keysRoundTripInOrder() throws Exception {
+        hotKeys.write(Arrays.asList(
+                new HotKeyFile.Record("http://a/1.jpg", 100, 200, "ARGB_8888"),
+                new HotKeyFile.Record("http://a/with space.png", 0, 0, null),
+                new HotKeyFile.Record("/sdcard/ͼ.jpg", 64, 48, "RGB_565")));
+
+        List<HotKeyFile.Record> records = new HotKeyFile(cacheDir).read();
+        assertEquals(3, records.size());
+        assertRecord(records.get(0), "http://a/1.jpg", 100, 200, "ARGB_8888");
+        assertRecord(records.get(1), "http://a/with space.png", 0, 0, null);
+        assertRecord(records.get(2), "/sdcard/ͼ.jpg", 64, 48, "RGB_565");
+        assertFalse(new File(hotKeys.getFile().getPath() + ".tmp").exists());
+    }
+
+    @Test public void writeReplacesPreviousKeys() throws Exception {
+        hotKeys.write(Arrays.asList(new HotKeyFile.Record("a", 1, 1, null)));
+        hotKeys.write(Arrays.asList(new HotKeyFile.Record("b", 2, 2, null)));
+        List<HotKeyFile.Record> records = hotKeys.read();
+        assertEquals(1, records.size());
+        assertEquals("b", records.get(0).url);
+    }
+
+    @Test public void urlsWithLineBreaksAreLeftOut() throws Exception {
+        hotKeys.write(Arrays.asList(
+                new HotKeyFile.Record("a\nb", 1, 1, null),
+                new HotKeyFile.Record("c\rd", 1, 1, null),
+                new HotKeyFile.Record("e", 1, 1, null)));
+        List<HotKeyFile.Record> records = hotKeys.read();
+        assertEquals(1, records.size());
+        assertEquals("e", records.get(0).url);
+    }
+
+    @Test public void malformedLinesAreSkipped() throws Exception {
+        FileOutputStream out = new FileOutputStream(hotKeys.getFile());
+        out.write(("garbage\n1 x - bad-height\n3 4 - good\n\n5 6 FUTURE_CONFIG later\n")
+                .getBytes(DiskLruCache.UTF_8));
+        out.close();
+        List<HotKeyFile.Record> records = hotKeys.read();
+        assertEquals(2, records.size());
+        assertRecord(records.get(0), "good", 3, 4, null);
+        // unknown configs are left to the caller
+        assertRecord(records.get(1), "later", 5, 6, "FUTURE_CONFIG");
+    }
+
+    @Test public void missingFileHasNoKeys() throws Exception {
+        assertTrue(hotKeys.read().isEmpty());
+        hotKeys.write(Arrays.asList(new HotKeyFile.Record("a", 1, 1, null)));
+        hotKeys.delete();
+        assertTrue(hotKeys.read().isEmpty());
+    }
+
+    private static void assertRecord(HotKeyFile.Record record, String url, int width, int height,
+            String config) {
+        assertEquals(url, record.url);
+        assertEquals(width, record.width);
+        assertEquals(height, record.height);
+        if (config == null) {
+            assertNull(record.config);
+        } else {
+            assertEquals(config, record.config);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.lance.lib.bitmap.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class PackFileStoreTest {
+    @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+    private File dir;
+    private PackFileStore store;
+
+    @Before public void setUp() throws Exception {
+        dir = tempDir.newFolder("PackFileStoreTest");
+    }
+
+    @After public void tearDown() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    @Test public void appendStartsNewPackWhenFull() throws Exception {
+        store = new PackFileStore(dir, 8);
+        assertEquals(0, store.append(bytes("abcd")));
+        assertEquals(0, store.activePackId());
+        assertEquals(4, store.append(bytes("efgh")));
+        assertEquals(0, store.activePackId());
+        assertEquals(0, store.append(bytes("ij")));
+        assertEquals(1, store.activePackId());
+
+        assertArrayEquals(bytes("efgh"), store.read(0, 4, 4));
+        assertArrayEquals(bytes("ij"), store.read(1, 0, 2));
+        assertEquals(8, pack(0).length());
+    }
+
+    @Test public void sealedPackIsDeletedWhenNothingIsLive() throws Exception {
+        store = new PackFileStore(dir, 8);
+        store.append(bytes("abcd"));
+        store.append(bytes("efgh"));
+        store.append(bytes("ij"));
+        store.release(0, 4);
+        assertTrue(pack(0).exists());
+        store.release(0, 4);
+        assertFalse(pack(0).exists());
+        assertTrue(pack(1).exists());
+    }
+
+    @Test public void emptiedActivePackIsDeletedWhenSealed() throws Exception {
+        store = new PackFileStore(dir, 4);
+        store.append(bytes("abcd"));
+        store.release(0, 4);
+        assertTrue(pack(0).exists()); // still being appended to
+
+        store.append(bytes("ef"));
+        assertEquals(1, store.activePackId());
+        assertFalse(pack(0).exists());
+        assertFalse(store.compactionRequired());
+    }
+
+    @Test public void mostlyDeadSealedPacksAreCompactionCandidates() throws Exception {
+        store = new PackFileStore(dir, 6);
+        store.append(bytes("aa"));
+        store.append(bytes("bb"));
+        store.append(bytes("cc"));
+        store.append(bytes("dd"));
+        store.release(0, 2);
+        assertFalse(store.compactionRequired()); // 4 of 6 bytes live
+        store.release(0, 2);
+        assertEquals(Collections.singletonList(0), store.compactionCandidates());
+
+        // the active pack is never a candidate
+        store.release(1, 2);
+        assertEquals(Arrays.asList(0), store.compactionCandidates());
+    }
+
+    @Test public void scanAccountsLiveValuesAndDeletesUnusedPacks() throws Exception {
+        writeFile(pack(3), "0123456789");
+        writeFile(pack(4), "0123");
+        store = new PackFileStore(dir, 16);
+        store.scan();
+        assertTrue(store.hasPacks());
+        assertTrue(store.addLive(3, 2, 4));
+        assertFalse(store.addLive(3, 8, 4)); // truncated
+        assertFalse(store.addLive(5, 0, 1)); // missing
+        store.deleteUnused();
+        assertTrue(pack(3).exists());
+        assertFalse(pack(4).exists());
+
+        // the id of the deleted pack isn't reused
+        assertEquals(0, store.append(bytes("x")));
+        assertEquals(5, store.activePackId());
+        assertArrayEquals(bytes("2345"), store.read(3, 2, 4));
+    }
+
+    private File pack(int id) {
+        return new File(dir, PackFileStore.PACK_FILE_PREFIX + id);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(DiskLruCache.UTF_8);
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(bytes(content));
+        out.close();
+    }
+}
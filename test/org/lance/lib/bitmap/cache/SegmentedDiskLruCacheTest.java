@@ -0,0 +1,117 @@
+package org.lance.lib.bitmap.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class SegmentedDiskLruCacheTest {
+    private static final int APP_VERSION = 100;
+    private static final int SEGMENTS = 4;
+
+    @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+    private File cacheDir;
+    private SegmentedDiskLruCache cache;
+
+    @Before public void setUp() throws Exception {
+        cacheDir = tempDir.newFolder("SegmentedDiskLruCacheTest");
+        cache = SegmentedDiskLruCache.open(cacheDir, APP_VERSION, 1, Integer.MAX_VALUE, SEGMENTS);
+    }
+
+    @After public void tearDown() throws Exception {
+        cache.close();
+    }
+
+    @Test public void keysAreSpreadOverSegments() throws Exception {
+        for (int i = 0; i < 40; i++) {
+            set("k" + i, "v" + i);
+        }
+        int usedSegments = 0;
+        for (int i = 0; i < SEGMENTS; i++) {
+            File segment = new File(cacheDir, "s" + SEGMENTS + "_" + i);
+            assertTrue(segment.isDirectory());
+            for (String name : segment.list()) {
+                if (name.endsWith(".0")) {
+                    usedSegments++;
+                    break;
+                }
+            }
+        }
+        assertTrue("only " + usedSegments + " segments used", usedSegments > 1);
+        assertEquals(10 * 2 + 30 * 3, cache.size());
+    }
+
+    @Test public void valuesSurviveReopen() throws Exception {
+        for (int i = 0; i < 40; i++) {
+            set("k" + i, "v" + i);
+        }
+        assertTrue(cache.remove("k7"));
+        cache.close();
+
+        cache = SegmentedDiskLruCache.open(cacheDir, APP_VERSION, 1, Integer.MAX_VALUE, SEGMENTS);
+        for (int i = 0; i < 40; i++) {
+            DiskLruCache.Snapshot snapshot = cache.get("k" + i);
+            if (i == 7) {
+                assertNull(snapshot);
+            } else {
+                assertEquals("v" + i, snapshot.getString(0));
+                snapshot.close();
+            }
+        }
+    }
+
+    @Test public void foreignFilesAreDeleted() throws Exception {
+        set("k1", "v1");
+        cache.close();
+        writeFile(new File(cacheDir, DiskLruCache.JOURNAL_FILE), "old");
+        writeFile(new File(cacheDir, "k2.0"), "v2");
+        File otherSegmentCount = new File(cacheDir, "s2_0");
+        assertTrue(otherSegmentCount.mkdir());
+        writeFile(new File(otherSegmentCount, "k3.0"), "v3");
+
+        cache = SegmentedDiskLruCache.open(cacheDir, APP_VERSION, 1, Integer.MAX_VALUE, SEGMENTS);
+        Set<String> expected = new HashSet<String>();
+        for (int i = 0; i < SEGMENTS; i++) {
+            expected.add("s" + SEGMENTS + "_" + i);
+        }
+        assertEquals(expected, new HashSet<String>(Arrays.asList(cacheDir.list())));
+        assertEquals("v1", cache.get("k1").getString(0));
+    }
+
+    @Test public void closedOnceEverySegmentIsClosed() throws Exception {
+        assertFalse(cache.isClosed());
+        cache.close();
+        assertTrue(cache.isClosed());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxSizeMustCoverEverySegment() throws Exception {
+        SegmentedDiskLruCache.open(cacheDir, APP_VERSION, 1, SEGMENTS - 1, SEGMENTS);
+    }
+
+    private void set(String key, String value) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, value);
+        editor.commit();
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content.getBytes(DiskLruCache.UTF_8));
+        out.close();
+    }
+}
@@ -0,0 +1,186 @@
+package org.lance.lib.bitmap.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public final class StripedLruCacheTest {
+    @Test public void hotKeysPutReferencedEntriesFirst() {
+        StripedLruCache<String, String> cache = new StripedLruCache<String, String>(10, 1);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        cache.put("d", "D");
+        cache.get("b");
+        cache.get("d");
+        assertEquals(Arrays.asList("d", "b", "c", "a"), cache.hotKeys(10));
+        assertEquals(Arrays.asList("d", "b", "c"), cache.hotKeys(3));
+    }
+
+    @Test public void evictionClearsReferencedBitFirst() {
+        StripedLruCache<String, String> cache = new StripedLruCache<String, String>(3, 1);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        cache.get("a");
+        // a loses its bit and moves behind d, b goes
+        cache.put("d", "D");
+        assertEquals(Arrays.asList("a", "d", "c"), cache.hotKeys(10));
+    }
+
+    @Test public void sizeIsExactUnderPutReplaceRemoveAndEvict() {
+        LengthCache cache = new LengthCache(10, 4);
+        assertNull(cache.put("a", "aaa"));
+        cache.put("b", "bb");
+        assertEquals(5, cache.size());
+        assertEquals("aaa", cache.put("a", "a"));
+        assertEquals(3, cache.size());
+        assertEquals("bb", cache.remove("b"));
+        assertNull(cache.remove("b"));
+        assertEquals(1, cache.size());
+        assertEquals(Arrays.asList("false a aaa a", "false b bb null"), cache.removed);
+
+        cache.put("c", "cccccc");
+        cache.put("d", "dddd");
+        // 11 units, so something went; the size is what is left
+        assertTrue(cache.evictionCount() >= 1);
+        assertTrue(cache.size() <= 10);
+        assertEquals(sumOfLengths(cache), cache.size());
+        assertEquals(5, cache.putCount());
+    }
+
+    @Test public void resizeEvictsDownToNewMaxSize() {
+        StripedLruCache<String, String> cache = new StripedLruCache<String, String>(10, 1);
+        for (int i = 0; i < 10; i++) {
+            cache.put("k" + i, "v" + i);
+        }
+        cache.resize(4);
+        assertEquals(4, cache.maxSize());
+        assertEquals(4, cache.size());
+        assertEquals(6, cache.evictionCount());
+        assertEquals(Arrays.asList("k9", "k8", "k7", "k6"), cache.hotKeys(10));
+        // the new budget holds for later puts too
+        cache.put("k10", "v10");
+        assertEquals(4, cache.size());
+        assertNull(cache.get("k6"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void resizeRejectsNonPositiveMaxSize() {
+        new StripedLruCache<String, String>(10, 1).resize(0);
+    }
+
+    @Test(timeout = 5000)
+    public void trimToSizeStopsOnceEverySegmentIsEmpty() {
+        LengthCache cache = new LengthCache(100, 8);
+        for (int i = 0; i < 20; i++) {
+            cache.put("k" + i, i % 2 == 0 ? "" : "v");
+        }
+        cache.trimToSize(-1);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.hotKeys(100).size());
+        assertEquals(20, cache.evictionCount());
+        cache.trimToSize(-1);
+        assertEquals(20, cache.evictionCount());
+    }
+
+    @Test public void entryRemovedIsCalledOutsideTheLock() {
+        final List<Boolean> blocked = new ArrayList<Boolean>();
+        StripedLruCache<String, String> cache = new StripedLruCache<String, String>(1, 1) {
+            @Override protected void entryRemoved(boolean evicted, String key, String oldValue,
+                    String newValue) {
+                // one segment, so another thread's write needs the same lock
+                Thread writer = new Thread() {
+                    @Override public void run() {
+                        remove("absent");
+                    }
+                };
+                writer.start();
+                try {
+                    writer.join(2000);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                blocked.add(writer.isAlive());
+            }
+        };
+        cache.put("a", "A");
+        cache.put("a", "B"); // replaced
+        cache.put("b", "C"); // evicted
+        cache.remove("b"); // removed
+        cache.put("c", "D");
+        cache.evictAll();
+        assertEquals(Arrays.asList(false, false, false, false), blocked);
+    }
+
+    @Test public void concurrentWritesKeepSharedBudget() throws Exception {
+        final LengthCache cache = new LengthCache(50, 4);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final Random random = new Random(t);
+            threads[t] = new Thread() {
+                @Override public void run() {
+                    for (int i = 0; i < 5000; i++) {
+                        String key = "k" + random.nextInt(200);
+                        int op = random.nextInt(4);
+                        if (op == 0) {
+                            cache.remove(key);
+                        } else if (op == 1) {
+                            cache.get(key);
+                        } else {
+                            cache.put(key, "vvvvv".substring(random.nextInt(5)));
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(cache.size() <= 50);
+        assertEquals(sumOfLengths(cache), cache.size());
+        for (String key : cache.hotKeys(Integer.MAX_VALUE)) {
+            assertNotNull(cache.get(key));
+        }
+        assertFalse(cache.hotKeys(Integer.MAX_VALUE).isEmpty());
+    }
+
+    /** The sum of the lengths of the values still in {@code cache}. */
+    private static long sumOfLengths(StripedLruCache<String, String> cache) {
+        long sum = 0;
+        for (String key : cache.hotKeys(Integer.MAX_VALUE)) {
+            sum += cache.get(key).length();
+        }
+        return sum;
+    }
+
+    /** Sizes each value by its length and logs removals that aren't evictions. */
+    private static final class LengthCache extends StripedLruCache<String, String> {
+        final List<String> removed = new ArrayList<String>();
+
+        LengthCache(long maxSize, int concurrency) {
+            super(maxSize, concurrency);
+        }
+
+        @Override protected int sizeOf(String key, String value) {
+            return value.length();
+        }
+
+        @Override protected synchronized void entryRemoved(boolean evicted, String key,
+                String oldValue, String newValue) {
+            if (!evicted) {
+                removed.add(evicted + " " + key + " " + oldValue + " " + newValue);
+            }
+        }
+    }
+}